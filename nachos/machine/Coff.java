@@ -3,6 +3,8 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A COFF (common object file format) loader.
@@ -45,6 +47,7 @@ public class Coff {
         if (coff != null) {
             this.entryPoint = coff.entryPoint;
             this.sections = coff.sections;
+            this.symbolTableOffset = coff.symbolTableOffset;
         } else {
             byte[] headers = new byte[headerLength + aoutHeaderLength];
 
@@ -60,6 +63,7 @@ public class Coff {
             int optionalHeaderLength = Lib.bytesToUnsignedShort(headers, 16);
             int flags = Lib.bytesToUnsignedShort(headers, 18);
             entryPoint = Lib.bytesToInt(headers, headerLength + 16);
+            symbolTableOffset = Lib.bytesToInt(headers, 8);
 
             if (magic != 0x0162) {
                 Lib.debug(dbgCoff, "\tincorrect magic number");
@@ -125,6 +129,145 @@ public class Coff {
         return entryPoint;
     }
 
+    /**
+     * Read the procedure names from the executable's ECOFF symbol table. The
+     * file is read in one go, without taking simulated time, so that looking
+     * up symbols does not change the timing of the program.
+     *
+     * @return the procedures of this executable, or <tt>null</tt> if the
+     * symbol table is malformed. The table is empty if the executable has
+     * been stripped.
+     */
+    public SymbolTable readSymbolTable() {
+        Lib.assertTrue(file != null);
+
+        TreeMap<Integer, String> procedures = new TreeMap<Integer, String>();
+
+        if (symbolTableOffset != 0) {
+            int length = file.length() - symbolTableOffset;
+            if (symbolTableOffset < 0 || length < symbolicHeaderLength) {
+                Lib.debug(dbgCoff, "\tbad symbol table offset");
+                return null;
+            }
+
+            byte[] symbols = new byte[length];
+            if (file.readUntimed(symbolTableOffset, symbols, 0, length)
+                    != length) {
+                Lib.debug(dbgCoff, "\tcannot read symbol table");
+                return null;
+            }
+
+            if (Lib.bytesToUnsignedShort(symbols, 0) != symbolicHeaderMagic) {
+                Lib.debug(dbgCoff, "\tbad symbolic header");
+                return null;
+            }
+
+            if (!readProcedures(symbols, procedures)) {
+                Lib.debug(dbgCoff, "\tbad symbol table");
+                return null;
+            }
+        }
+
+        int[] addresses = new int[procedures.size()];
+        String[] names = new String[procedures.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> e : procedures.entrySet()) {
+            addresses[i] = e.getKey();
+            names[i] = e.getValue();
+            i++;
+        }
+
+        return new SymbolTable(addresses, names);
+    }
+
+    /**
+     * Collect the procedures from a symbol table read into <i>symbols</i>,
+     * which starts with the symbolic header. The offsets in the header are
+     * from the start of the file. Every table, entry and name is checked to
+     * lie within <i>symbols</i> before it is read.
+     *
+     * @return <tt>false</tt> if an offset or count is out of range.
+     */
+    private boolean readProcedures(byte[] symbols,
+                                   Map<Integer, String> procedures) {
+        long base = symbolTableOffset;
+        long localSymbols = Lib.bytesToInt(symbols, 36) - base;
+        long localStrings = Lib.bytesToInt(symbols, 60) - base;
+        long externalStrings = Lib.bytesToInt(symbols, 68) - base;
+        int numFiles = Lib.bytesToInt(symbols, 72);
+        long fileDescriptors = Lib.bytesToInt(symbols, 76) - base;
+        int numExternals = Lib.bytesToInt(symbols, 88);
+        long externals = Lib.bytesToInt(symbols, 92) - base;
+
+        if (!fits(symbols, fileDescriptors, numFiles, fileDescriptorLength)
+                || !fits(symbols, externals, numExternals, externalLength))
+            return false;
+
+        // local symbols, numbered and named per source file
+        for (int f = 0; f < numFiles; f++) {
+            int fd = (int) fileDescriptors + f * fileDescriptorLength;
+            long stringBase = localStrings + Lib.bytesToInt(symbols, fd + 8);
+            int first = Lib.bytesToInt(symbols, fd + 16);
+            int count = Lib.bytesToInt(symbols, fd + 20);
+
+            long start = localSymbols + (long) first * symbolLength;
+            if (first < 0 || !fits(symbols, start, count, symbolLength))
+                return false;
+
+            for (int i = 0; i < count; i++) {
+                if (!readProcedure(symbols, (int) start + i * symbolLength,
+                        stringBase, procedures))
+                    return false;
+            }
+        }
+
+        // external symbols: a 4-byte prefix, then a local-format symbol
+        for (int i = 0; i < numExternals; i++) {
+            if (!readProcedure(symbols, (int) externals + i * externalLength
+                    + 4, externalStrings, procedures))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Add the symbol at offset <i>symbol</i> to <i>procedures</i> if it is a
+     * procedure. The symbol must lie within <i>symbols</i>.
+     *
+     * @return <tt>false</tt> if the symbol's name is out of range.
+     */
+    private static boolean readProcedure(byte[] symbols, int symbol,
+                                         long strings,
+                                         Map<Integer, String> procedures) {
+        int type = Lib.bytesToInt(symbols, symbol + 8) & 0x3F;
+        if (type != stProc && type != stStaticProc)
+            return true;
+
+        long name = strings + Lib.bytesToInt(symbols, symbol);
+        if (name < 0 || name >= symbols.length)
+            return false;
+
+        int end = (int) name;
+        while (end < symbols.length && symbols[end] != 0)
+            end++;
+
+        procedures.put(Lib.bytesToInt(symbols, symbol + 4),
+                new String(symbols, (int) name, end - (int) name));
+        return true;
+    }
+
+    /**
+     * Test if <i>count</i> entries of <i>size</i> bytes, starting at offset
+     * <i>start</i>, lie within <i>symbols</i>. An empty table has offset 0 in
+     * the file, so its start is not checked.
+     */
+    private static boolean fits(byte[] symbols, long start, int count,
+                                int size) {
+        return count == 0 || count > 0 && start >= 0
+                && start + (long) count * size <= symbols.length;
+    }
+
     /**
      * Close the executable file and release any resources allocated by this
      * loader.
@@ -145,9 +288,20 @@ public class Coff {
      * The sections in this COFF executable.
      */
     protected CoffSection[] sections;
+    /**
+     * The file offset of the symbolic header, or 0 if there is none.
+     */
+    protected int symbolTableOffset;
 
     private static final int headerLength = 20;
     private static final int aoutHeaderLength = 28;
 
+    private static final int symbolicHeaderMagic = 0x7009;
+    private static final int symbolicHeaderLength = 96;
+    private static final int fileDescriptorLength = 72;
+    private static final int symbolLength = 12;
+    private static final int externalLength = 16;
+    private static final int stProc = 6, stStaticProc = 14;
+
     private static final char dbgCoff = 'c';
 }
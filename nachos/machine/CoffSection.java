@@ -4,7 +4,6 @@ package nachos.machine;
 
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -178,8 +177,8 @@ public class CoffSection {
         Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
 
         int pageSize = Processor.pageSize;
-        byte[] memory = Machine.processor().getMemory();
-        int paddr = ppn * pageSize;
+        PhysicalMemory memory = Machine.processor().getMemory();
+        long paddr = (long) ppn * pageSize;
         int faddr = contentOffset + spn * pageSize;
         int initlen;
 
@@ -194,10 +193,15 @@ public class CoffSection {
         else
             initlen = pageSize;
 
-        if (initlen > 0)
-            Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+        if (initlen > 0) {
+            byte[] buffer = new byte[initlen];
+            Lib.strictReadFile(file, faddr, buffer, 0, initlen);
+            memory.write(paddr, buffer, 0, initlen);
+        }
+
+        memory.clear(paddr + initlen, pageSize - initlen);
 
-        Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+        Machine.processor().invalidDecodeCache(ppn);
     }
 
     /**
@@ -0,0 +1,187 @@
+package nachos.machine;
+
+/**
+ * 调试事件。
+ * Debug tracing for hot paths. Unlike <tt>Lib.debug()</tt>, whose message is
+ * built by the caller whether or not the flag is set, an event is a constant
+ * format string and up to two arguments, and is only formatted if it is
+ * printed. When no debug flag was given on the command line,
+ * <tt>enabled</tt> is a constant <tt>false</tt> and the JIT compiles every
+ * <tt>test()</tt> and <tt>event()</tt> call down to nothing.
+ *
+ * <p>
+ * The flags are the <tt>-d</tt> characters used by <tt>Lib.debug()</tt>. By
+ * default events of enabled flags are printed as they happen, interleaved
+ * with the other debug output. If <tt>Debug.bufferSize</tt> is set, they are
+ * instead recorded in a ring buffer of that many events, allocated once, and
+ * the last ones are printed when Nachos terminates.
+ */
+public final class Debug {
+    private Debug() {
+    }
+
+    /**
+     * <tt>true</tt> if any debug flag was enabled on the command line. Fixed
+     * when this class is initialized, after the command line is processed.
+     */
+    public static final boolean enabled = Lib.fixDebugFlags();
+
+    /**
+     * Tests if <i>flag</i> was enabled on the command line. Same as
+     * <tt>Lib.test(flag)</tt>, but free when debugging is off.
+     *
+     * @param flag the debug flag to test.
+     * @return <tt>true</tt> if this flag was enabled.
+     */
+    public static boolean test(char flag) {
+        return enabled && Lib.test(flag);
+    }
+
+    /**
+     * Record an event if <i>flag</i> was enabled on the command line.
+     *
+     * @param flag   the debug flag.
+     * @param format the event, a <tt>String.format()</tt> format string.
+     */
+    public static void event(char flag, String format) {
+        if (enabled && Lib.test(flag))
+            record(format, 0, 0, null, null, 0);
+    }
+
+    /**
+     * Record an event with a numeric argument.
+     *
+     * @param flag   the debug flag.
+     * @param format the event, with one argument.
+     * @param a      the argument.
+     */
+    public static void event(char flag, String format, long a) {
+        if (enabled && Lib.test(flag))
+            record(format, a, 0, null, null, 1);
+    }
+
+    /**
+     * Record an event with two numeric arguments.
+     *
+     * @param flag   the debug flag.
+     * @param format the event, with two arguments.
+     * @param a      the first argument.
+     * @param b      the second argument.
+     */
+    public static void event(char flag, String format, long a, long b) {
+        if (enabled && Lib.test(flag))
+            record(format, a, b, null, null, 2);
+    }
+
+    /**
+     * Record an event with an object argument, which is only converted to a
+     * string if the event is printed.
+     *
+     * @param flag   the debug flag.
+     * @param format the event, with one argument.
+     * @param a      the argument.
+     */
+    public static void event(char flag, String format, Object a) {
+        if (enabled && Lib.test(flag))
+            record(format, 0, 0, a, null, 1 | objectA);
+    }
+
+    /**
+     * Record an event with an object and a numeric argument.
+     *
+     * @param flag   the debug flag.
+     * @param format the event, with two arguments.
+     * @param a      the first argument.
+     * @param b      the second argument.
+     */
+    public static void event(char flag, String format, Object a, long b) {
+        if (enabled && Lib.test(flag))
+            record(format, 0, b, a, null, 2 | objectA);
+    }
+
+    /**
+     * Record an event with two object arguments.
+     *
+     * @param flag   the debug flag.
+     * @param format the event, with two arguments.
+     * @param a      the first argument.
+     * @param b      the second argument.
+     */
+    public static void event(char flag, String format, Object a, Object b) {
+        if (enabled && Lib.test(flag))
+            record(format, 0, 0, a, b, 2 | objectA | objectB);
+    }
+
+    private static void record(String format, long a, long b,
+                               Object objA, Object objB, int kind) {
+        if (buffer == null) {
+            System.out.println(format(format, a, b, objA, objB, kind));
+            return;
+        }
+
+        int i = (int) (numEvents++ % buffer.length);
+        buffer[i] = format;
+        times[i] = Machine.timer() == null ? 0 : Machine.timer().getTime();
+        numbers[2 * i] = a;
+        numbers[2 * i + 1] = b;
+        objects[2 * i] = objA;
+        objects[2 * i + 1] = objB;
+        kinds[i] = (byte) kind;
+    }
+
+    private static String format(String format, long a, long b,
+                                 Object objA, Object objB, int kind) {
+        Object first = (kind & objectA) != 0 ? objA : (Object) a;
+        Object second = (kind & objectB) != 0 ? objB : (Object) b;
+
+        switch (kind & 3) {
+            case 0:
+                return format;
+            case 1:
+                return String.format(format, first);
+            default:
+                return String.format(format, first, second);
+        }
+    }
+
+    /**
+     * Print the events in the ring buffer, oldest first.
+     */
+    private static void dump() {
+        long first = Math.max(0, numEvents - buffer.length);
+        System.out.println("\nDebug events " + first + " to " + numEvents
+                + ":");
+
+        for (long n = first; n < numEvents; n++) {
+            int i = (int) (n % buffer.length);
+            System.out.println("[" + times[i] + "] "
+                    + format(buffer[i], numbers[2 * i], numbers[2 * i + 1],
+                    objects[2 * i], objects[2 * i + 1], kinds[i]));
+        }
+    }
+
+    private static final int objectA = 4, objectB = 8;
+
+    private static String[] buffer = null;
+    private static long[] times, numbers;
+    private static Object[] objects;
+    private static byte[] kinds;
+    private static long numEvents = 0;
+
+    static {
+        int size = enabled ? Config.getInteger("Debug.bufferSize", 0) : 0;
+        if (size > 0) {
+            buffer = new String[size];
+            times = new long[size];
+            numbers = new long[2 * size];
+            objects = new Object[2 * size];
+            kinds = new byte[size];
+
+            Machine.addTerminationHandler(new Runnable() {
+                public void run() {
+                    dump();
+                }
+            });
+        }
+    }
+}
@@ -4,8 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-
 /**
  * Interrupt类模拟 low-level 的中断硬件。
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,7 @@ public final class Interrupt {
         privilege.interrupt = new InterruptPrivilege();
 
         enabled = false;
-        pending = new TreeSet<>();
+        pending = new TimingWheel<>();
     }
 
     /**
@@ -123,6 +121,39 @@ public final class Interrupt {
         return !enabled;
     }
 
+    /**
+     * 空闲快进。
+     * Skip the simulated time an idle kernel would spend spinning until the
+     * next interrupt. Time is advanced in whole kernel ticks, to the last
+     * tick before the earliest pending interrupt is due, so the next tick
+     * invokes it at exactly the time it would have had if the kernel had
+     * spun. Does nothing if no interrupt is pending, or if the interrupt
+     * debug flag is on, which traces every tick.
+     *
+     * <p>
+     * Meant to be called when nothing is ready to run, with interrupts
+     * disabled. No handler is run here; the tick when interrupts are enabled
+     * again runs them.
+     */
+    public void idle() {
+        Lib.assertTrue(disabled());
+
+        if (Debug.test(dbgInt))
+            return;
+
+        Stats stats = privilege.stats;
+
+        long due = pending.firstTime();
+        if (due == Long.MAX_VALUE)
+            return;
+
+        long skipped = (due - stats.totalTicks - 1) / Stats.KernelTick;
+        if (skipped > 0) {
+            stats.kernelTicks += skipped * Stats.KernelTick;
+            stats.totalTicks += skipped * Stats.KernelTick;
+        }
+    }
+
     /**
      *
      * 内核的硬件可以通过此方法将中断加入 pending 容器中。
@@ -136,11 +167,12 @@ public final class Interrupt {
         long time = privilege.stats.totalTicks + when;
         PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-        Lib.debug(dbgInt,
-                "Scheduling the " + type +
-                        " interrupt handler at time = " + time);
+        Debug.event(dbgInt, "Scheduling the %s interrupt handler at time = %d",
+                type, time);
 
-        pending.add(toOccur);
+        pending.schedule(time, toOccur);
+        if (time < nextDue)
+            nextDue = time;
     }
 
     /**
@@ -161,8 +193,7 @@ public final class Interrupt {
             stats.totalTicks += Stats.UserTick;
         }
 
-        if (Lib.test(dbgInt))
-            System.out.println("== Tick " + stats.totalTicks + " ==");
+        Debug.event(dbgInt, "== Tick %d ==", stats.totalTicks);
 
         // 现在还是是开中断的
         // todo 关中断
@@ -185,34 +216,71 @@ public final class Interrupt {
         // 在处理中断前，先屏蔽中断
         Lib.assertTrue(disabled());
 
-        if (Lib.test(dbgInt))
+        if (Debug.test(dbgInt))
             print();
 
-        if (pending.isEmpty())
+        if (nextDue > time)
             return;
 
-        if (pending.first().time > time)
+        TimingWheel.Entry<PendingInterrupt> due = pending.poll(time);
+        if (due == null) {
+            // nextDue was only a lower bound
+            nextDue = pending.nextTime();
             return;
+        }
 
-        Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+        Debug.event(dbgInt, "Invoking interrupt handlers at time = %d", time);
 
-        while (!pending.isEmpty() &&
-                pending.first().time <= time) {
-            PendingInterrupt next = pending.first();
-            pending.remove(next);
+        for (; due != null; due = pending.poll(time)) {
+            PendingInterrupt next = due.getValue();
 
             Lib.assertTrue(next.time <= time);
 
             if (privilege.processor != null)
                 privilege.processor.flushPipe();
 
-            Lib.debug(dbgInt, "  " + next.type);
+            Debug.event(dbgInt, "  %s", next.type);
 
             // 调用中断处理函数
             next.handler.run();
         }
 
-        Lib.debug(dbgInt, "  (end of list)");
+        nextDue = pending.nextTime();
+
+        Debug.event(dbgInt, "  (end of list)");
+    }
+
+    /**
+     * 在下一个中断到期之前，还可以连续执行多少条用户指令。
+     * Return the number of user ticks that can pass before the earliest
+     * pending interrupt is due. With the interrupt debug flag on, every tick
+     * is traced, so nothing is batched.
+     *
+     * @return the number of user ticks that can be accounted by
+     * <tt>tickUser()</tt> without running any handler.
+     */
+    private long userTicksUntilDue() {
+        if (Debug.test(dbgInt))
+            return 0;
+
+        return (nextDue - privilege.stats.totalTicks - 1) / Stats.UserTick;
+    }
+
+    /**
+     * 一次性计入若干条用户指令的时钟滴答。
+     * Account the time of several user instructions in one step. Since no
+     * interrupt becomes due in between, this is the same as calling
+     * <tt>tick(false)</tt> once per instruction.
+     *
+     * @param count the number of user instructions executed.
+     */
+    private void tickUser(long count) {
+        Stats stats = privilege.stats;
+
+        stats.userTicks += count * Stats.UserTick;
+        stats.totalTicks += count * Stats.UserTick;
+
+        Lib.assertTrue(stats.totalTicks < nextDue);
     }
 
     private void print() {
@@ -220,7 +288,8 @@ public final class Interrupt {
                 + ", interrupts " + (enabled ? "on" : "off"));
         System.out.println("Pending interrupts:");
 
-        for (PendingInterrupt toOccur : pending) {
+        for (TimingWheel.Entry<PendingInterrupt> entry : pending.entries()) {
+            PendingInterrupt toOccur = entry.getValue();
             System.out.println("  " + toOccur.type +
                     ", scheduled at " + toOccur.time);
         }
@@ -231,40 +300,33 @@ public final class Interrupt {
     /**
      * 挂起的中断
      */
-    private class PendingInterrupt implements Comparable<PendingInterrupt> {
+    private class PendingInterrupt {
         PendingInterrupt(long time, String type, Runnable handler) {
             this.time = time;
             this.type = type;
             this.handler = handler;
-            this.id = numPendingInterruptsCreated++;
-        }
-
-        public int compareTo(PendingInterrupt o) {
-
-            // can't return 0 for unequal objects, so check all fields
-            if (time < o.time)
-                return -1;
-            else if (time > o.time)
-                return 1;
-            else return Long.compare(id, o.id);
         }
 
         long time;
         String type;
         Runnable handler;
-
-        private final long id;
     }
 
-    private long numPendingInterruptsCreated = 0;
-
     private final Privilege privilege;
 
     private boolean enabled;
     /**
-     * 存储各种 PendingInterrupt 的容器
+     * 存储各种 PendingInterrupt 的容器。
+     * Interrupts with equal times are invoked in the order they were
+     * scheduled.
+     */
+    private final TimingWheel<PendingInterrupt> pending;
+    /**
+     * 最早到期的中断时间。
+     * A lower bound on the time of the first entry in <tt>pending</tt>, or
+     * <tt>Long.MAX_VALUE</tt> if there is none.
      */
-    private final TreeSet<PendingInterrupt> pending;
+    private long nextDue = Long.MAX_VALUE;
 
     private static final char dbgInt = 'i';
 
@@ -277,5 +339,13 @@ public final class Interrupt {
 //            System.out.println("to here tick2");
             Interrupt.this.tick(inKernelMode);
         }
+
+        public long userTicksUntilDue() {
+            return Interrupt.this.userTicksUntilDue();
+        }
+
+        public void tickUser(long count) {
+            Interrupt.this.tickUser(count);
+        }
     }
 }
@@ -146,6 +146,9 @@ public final class Lib {
      * @param    flagsString    the flags to enable.
      */
     public static void enableDebugFlags(String flagsString) {
+        Lib.assertTrue(!debugFlagsFixed,
+                "debug flags enabled after tracing started");
+
         if (debugFlags == null)
             debugFlags = new boolean[0x80];
 
@@ -157,10 +160,22 @@ public final class Lib {
         }
     }
 
+    /**
+     * Stop further changes to the debug flags, so that <tt>Debug</tt> can
+     * treat them as constant.
+     *
+     * @return <tt>true</tt> if any debug flag is enabled.
+     */
+    static boolean fixDebugFlags() {
+        debugFlagsFixed = true;
+        return debugFlags != null;
+    }
+
     /**
      * Debug flags specified on the command line.
      */
     private static boolean debugFlags[];
+    private static boolean debugFlagsFixed = false;
 
     /**
      * Read a file, verifying that the requested number of bytes is read, and
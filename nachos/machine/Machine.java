@@ -93,6 +93,17 @@ public final class Machine {
         TCB.die();
     }
 
+    /**
+     * Arrange for the specified handler to run when Nachos terminates, after
+     * the kernel has stopped running threads. The handler must not use any
+     * kernel services.
+     *
+     * @param handler the handler to run at termination.
+     */
+    public static void addTerminationHandler(Runnable handler) {
+        privilege.addExitNotificationHandler(handler);
+    }
+
     /**
      * Terminate Nachos as the result of an unhandled exception or error.
      *
@@ -359,6 +370,16 @@ public final class Machine {
         return console;
     }
 
+    /**
+     * Return the test directory, the only directory the stub filesystem and
+     * the devices can write to.
+     *
+     * @return the test directory.
+     */
+    static File testDirectory() {
+        return testDirectory;
+    }
+
     /**
      * Return the stub filesystem.
      *
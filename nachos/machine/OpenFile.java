@@ -61,6 +61,22 @@ public class OpenFile {
         return -1;
     }
 
+    /**
+     * Read this file like <tt>read(pos, buf, offset, length)</tt>, but for the
+     * machine's own use: a file system that makes reads take simulated time
+     * does not charge this one. By default this is the same as
+     * <tt>read()</tt>.
+     *
+     * @param    pos    the offset in the file at which to start reading.
+     * @param    buf    the buffer to store the bytes in.
+     * @param    offset    the offset in the buffer to start storing bytes.
+     * @param    length    the number of bytes to read.
+     * @return the actual number of bytes successfully read, or -1 on failure.
+     */
+    int readUntimed(int pos, byte[] buf, int offset, int length) {
+        return read(pos, buf, offset, length);
+    }
+
     /**
      * Write this file starting at the specified position and return the number
      * of bytes successfully written. If no bytes were written because of a
@@ -0,0 +1,300 @@
+package nachos.machine;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 模拟物理内存。
+ * The physical memory attached to a <tt>Processor</tt>: a little-endian array
+ * of bytes addressed by physical address.
+ *
+ * <p>
+ * The bytes can live in one of three places, chosen by
+ * <tt>Processor.memory</tt>:
+ * <ul>
+ * <li><tt>heap</tt>, the default, an ordinary Java heap buffer;
+ * <li><tt>direct</tt>, a direct buffer outside the Java heap, so that large
+ * memories are not scanned or copied by the garbage collector;
+ * <li><tt>mapped</tt>, a memory-mapped file (<tt>Processor.memoryFile</tt>),
+ * whose pages are only faulted in when first touched, so that large
+ * memories are allocated instantly.
+ * </ul>
+ * A single buffer holds at most 2GB, so the bytes are kept in 1GB chunks,
+ * each its own buffer, and physical addresses are <tt>long</tt>s. The only
+ * limit on the number of pages is then that a <tt>TranslationEntry</tt>
+ * numbers them with an <tt>int</tt>. A heap memory must still fit in the
+ * Java heap.
+ */
+public final class PhysicalMemory {
+    /**
+     * Allocate physical memory of the specified size on the Java heap.
+     *
+     * @param size the number of bytes.
+     */
+    public PhysicalMemory(long size) {
+        this(size, false);
+    }
+
+    private PhysicalMemory(long size, boolean direct) {
+        this(new ByteBuffer[numChunks(size)], size);
+
+        for (int i = 0; i < chunks.length; i++) {
+            int length = chunkLength(size, i);
+            chunks[i] = direct ? ByteBuffer.allocateDirect(length)
+                    : ByteBuffer.allocate(length);
+        }
+    }
+
+    private PhysicalMemory(ByteBuffer[] chunks, long size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    /**
+     * Allocate physical memory of the specified size outside the Java heap.
+     *
+     * @param size the number of bytes.
+     * @return the new memory.
+     */
+    public static PhysicalMemory allocateDirect(long size) {
+        return new PhysicalMemory(size, true);
+    }
+
+    /**
+     * Map physical memory of the specified size onto a file, creating or
+     * resizing the file as needed. The memory is zeroed, whatever the file
+     * held before.
+     *
+     * @param file the backing file.
+     * @param size the number of bytes.
+     * @return the new memory, or <tt>null</tt> if the file could not be
+     * mapped.
+     */
+    public static PhysicalMemory map(File file, long size) {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // truncate first so that stale contents read back as zeros
+            channel.truncate(0);
+
+            // 每个块单独映射，一次映射最多 2GB
+            ByteBuffer[] chunks = new ByteBuffer[numChunks(size)];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) i << chunkShift, chunkLength(size, i));
+            }
+            return new PhysicalMemory(chunks, size);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the number of bytes of physical memory.
+     *
+     * @return the size of this memory.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Read a byte.
+     *
+     * @param paddr the physical address to read.
+     * @return the byte at <i>paddr</i>.
+     */
+    public byte readByte(long paddr) {
+        return chunk(paddr).get(offset(paddr));
+    }
+
+    /**
+     * Write a byte.
+     *
+     * @param paddr the physical address to write.
+     * @param value the byte to store.
+     */
+    public void writeByte(long paddr, byte value) {
+        chunk(paddr).put(offset(paddr), value);
+    }
+
+    /**
+     * Read a little-endian halfword.
+     *
+     * @param paddr the physical address to read. Should be halfword aligned.
+     * @return the halfword at <i>paddr</i>.
+     */
+    public short readHalfword(long paddr) {
+        return (short) halfwordView.get(chunk(paddr), offset(paddr));
+    }
+
+    /**
+     * Write a little-endian halfword.
+     *
+     * @param paddr the physical address to write. Should be halfword
+     *              aligned.
+     * @param value the halfword to store.
+     */
+    public void writeHalfword(long paddr, short value) {
+        halfwordView.set(chunk(paddr), offset(paddr), value);
+    }
+
+    /**
+     * Read a little-endian word.
+     *
+     * @param paddr the physical address to read. Should be word aligned.
+     * @return the word at <i>paddr</i>.
+     */
+    public int readWord(long paddr) {
+        return (int) wordView.get(chunk(paddr), offset(paddr));
+    }
+
+    /**
+     * Write a little-endian word.
+     *
+     * @param paddr the physical address to write. Should be word aligned.
+     * @param value the word to store.
+     */
+    public void writeWord(long paddr, int value) {
+        wordView.set(chunk(paddr), offset(paddr), value);
+    }
+
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param paddr  the first physical address to read.
+     * @param data   the array to copy into.
+     * @param offset the first byte to write in the array.
+     * @param length the number of bytes to copy.
+     */
+    public void read(long paddr, byte[] data, int offset, int length) {
+        while (length > 0) {
+            int amount = inChunk(paddr, length);
+            at(paddr).get(data, offset, amount);
+            paddr += amount;
+            offset += amount;
+            length -= amount;
+        }
+    }
+
+    /**
+     * Copy bytes from an array into physical memory.
+     *
+     * @param paddr  the first physical address to write.
+     * @param data   the array to copy from.
+     * @param offset the first byte to read in the array.
+     * @param length the number of bytes to copy.
+     */
+    public void write(long paddr, byte[] data, int offset, int length) {
+        while (length > 0) {
+            int amount = inChunk(paddr, length);
+            at(paddr).put(data, offset, amount);
+            paddr += amount;
+            offset += amount;
+            length -= amount;
+        }
+    }
+
+    /**
+     * Copy bytes within physical memory. The ranges must not overlap.
+     *
+     * @param src    the first physical address to read.
+     * @param dest   the first physical address to write.
+     * @param length the number of bytes to copy.
+     */
+    public void copy(long src, long dest, int length) {
+        while (length > 0) {
+            int amount = inChunk(dest, inChunk(src, length));
+            ByteBuffer source = at(src);
+            source.limit(source.position() + amount);
+            at(dest).put(source);
+            src += amount;
+            dest += amount;
+            length -= amount;
+        }
+    }
+
+    /**
+     * Set a range of physical memory to zero.
+     *
+     * @param paddr  the first physical address to clear.
+     * @param length the number of bytes to clear.
+     */
+    public void clear(long paddr, int length) {
+        while (length > 0) {
+            int amount = inChunk(paddr, Math.min(length, zeros.length));
+            at(paddr).put(zeros, 0, amount);
+            paddr += amount;
+            length -= amount;
+        }
+    }
+
+    /**
+     * Return a view of the buffer positioned at the specified physical
+     * address, for the relative bulk operations. The absolute bulk
+     * <tt>get()</tt> and <tt>put()</tt> only exist since Java 13 and 16.
+     *
+     * @param paddr the physical address.
+     * @return an independent view of the chunk holding <i>paddr</i>,
+     * positioned at it.
+     */
+    private ByteBuffer at(long paddr) {
+        ByteBuffer view = chunk(paddr).duplicate();
+        view.position(offset(paddr));
+        return view;
+    }
+
+    private ByteBuffer chunk(long paddr) {
+        return chunks[(int) (paddr >>> chunkShift)];
+    }
+
+    private static int offset(long paddr) {
+        return (int) paddr & chunkMask;
+    }
+
+    /**
+     * Return how many of <i>length</i> bytes starting at <i>paddr</i> lie in
+     * the chunk holding <i>paddr</i>.
+     */
+    private static int inChunk(long paddr, int length) {
+        return Math.min(length, chunkSize - offset(paddr));
+    }
+
+    private static int numChunks(long size) {
+        return (int) ((size + chunkSize - 1) >>> chunkShift);
+    }
+
+    private static int chunkLength(long size, int index) {
+        return (int) Math.min(chunkSize, size - ((long) index << chunkShift));
+    }
+
+    private final ByteBuffer[] chunks;
+    private final long size;
+
+    /**
+     * The size of a chunk: a whole number of pages, and at most the 2GB a
+     * buffer can hold.
+     */
+    private static final int chunkShift = 30;
+    private static final int chunkSize = 1 << chunkShift;
+    private static final int chunkMask = chunkSize - 1;
+
+    private static final byte[] zeros = new byte[Processor.pageSize];
+
+    /**
+     * Little-endian views of the buffer, for aligned word and halfword
+     * accesses.
+     */
+    private static final VarHandle wordView =
+            MethodHandles.byteBufferViewVarHandle(int[].class,
+                    ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle halfwordView =
+            MethodHandles.byteBufferViewVarHandle(short[].class,
+                    ByteOrder.LITTLE_ENDIAN);
+}
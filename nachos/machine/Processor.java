@@ -6,7 +6,11 @@ import nachos.security.*;
 import nachos.vm.LruUsedFrameManager;
 import nachos.vm.VMKernel;
 
-import java.util.Random;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
@@ -46,21 +50,50 @@ public final class Processor {
 
         this.numPhysPages = numPhysPages;
 
+        opcodeCounts = privilege.stats.opcodeCounts;
+
         for (int i = 0; i < numUserRegisters; i++)
             registers[i] = 0;
 
         // 模拟物理内存（注意是真实的物理内存条，不是虚拟内存地址空间）
-        mainMemory = new byte[pageSize * numPhysPages];
+        Lib.assertTrue(numPhysPages > 0, "no physical pages");
+        mainMemory = allocateMemory((long) pageSize * numPhysPages);
+
+        // 按物理页索引的指令预解码缓存，页内数组在第一次取指时才分配
+        decodeCache = new DecodedInstruction[numPhysPages][];
+
+        // 二进制执行轨迹，写到测试目录下的 Processor.trace 文件
+        String traceName = Config.getString("Processor.trace");
+        tracer = traceName == null ? null : openTrace(traceName);
 
         /*
          * 如果使用TLB，translations 代表 TLB；
          * 否则，translations 代表页表
          */
         if (usingTLB) {
+            // TLB 的大小、相联度（每组的项数）和替换策略都可以配置
+            tlbSize = Config.getInteger("Processor.tlbSize", 4);
+            tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+            Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0,
+                    "Processor.tlbWays must divide Processor.tlbSize");
+            tlbSets = tlbSize / tlbWays;
+            tlbReplacement = TLBReplacement.create(
+                    Config.getString("Processor.tlbReplacement", "random"),
+                    tlbSize);
+
+            numASIDs = Config.getInteger("Processor.numASIDs", 64);
+            Lib.assertTrue(numASIDs > 0);
+            tlbASIDs = new int[tlbSize];
+
             translations = new TranslationEntry[tlbSize];
             for (int i = 0; i < tlbSize; i++)
                 translations[i] = new TranslationEntry();
         } else {
+            tlbSize = tlbWays = tlbSets = 0;
+            tlbReplacement = null;
+            numASIDs = 0;
+            tlbASIDs = null;
+
             // 虽然这里为null,但是 UserProcess 会将translations设置为自己的页表
             translations = null;
         }
@@ -94,7 +127,7 @@ public final class Processor {
      * Start executing instructions at the current PC. Never returns.
      */
     public void run() {
-        Lib.debug(dbgProcessor, "starting program in current thread");
+        Debug.event(dbgProcessor, "starting program in current thread");
 
         // 模拟 pc = pc + 1的硬件过程，在这里+4是因为一条指令占 4 个字节
         registers[regNextPC] = registers[regPC] + 4;
@@ -103,6 +136,9 @@ public final class Processor {
 
         Instruction inst = new Instruction();
 
+        // 计时批次是按处理器记录的，换到这个线程后要重新计算
+        ticksUntilDue = privilege.interrupt.userTicksUntilDue();
+
         // 循环执行每一条指令（取指令、解析指令、执行指令）
         while (true) {
             try {
@@ -110,9 +146,48 @@ public final class Processor {
             } catch (MipsException e) {
 //                e.printStackTrace();
                 e.handle();
+                checkInterrupts();
+                continue;
             }
             // 每次执行用户代码的指令，时间前进
-            privilege.interrupt.tick(false);
+            retireInstruction();
+        }
+    }
+
+    /**
+     * Advance the simulated time past one user instruction. Until the next
+     * pending interrupt is due, the ticks are only counted here and added to
+     * <tt>Stats</tt> in one step by <tt>flushTicks()</tt>; the instruction
+     * that reaches the deadline does a full <tt>tick()</tt>.
+     */
+    private void retireInstruction() {
+        if (ticksUntilDue > 0) {
+            ticksUntilDue--;
+            ticksPending++;
+        } else {
+            checkInterrupts();
+        }
+    }
+
+    /**
+     * Account any batched ticks, then advance the time by one user tick and
+     * run the interrupt handlers that are due, as <tt>tick(false)</tt> does
+     * after every instruction.
+     */
+    private void checkInterrupts() {
+        flushTicks();
+        privilege.interrupt.tick(false);
+        ticksUntilDue = privilege.interrupt.userTicksUntilDue();
+    }
+
+    /**
+     * Add the ticks batched by <tt>retireInstruction()</tt> to the simulated
+     * time. Must be called before any kernel code runs.
+     */
+    private void flushTicks() {
+        if (ticksPending > 0) {
+            privilege.interrupt.tickUser(ticksPending);
+            ticksPending = 0;
         }
     }
 
@@ -210,19 +285,91 @@ public final class Processor {
         }
     }
 
-    Random random = new Random(0);
-
     /**
-     * TLB的替换策略有很多, LRU、Round-robin、Random
-     * 这里暂时这样处理，先优先替换 valid == false的, 否则 随机挑一个
+     * 只刷新属于某个地址空间的 TLB 项。
+     * Invalidate the TLB entries tagged with the specified address-space ID.
+     *
+     * @param asid the address-space ID.
      */
-    public int pickTLBEntry() {
+    public void flushTLB(int asid) {
+        Lib.assertTrue(usingTLB);
+
         for (int i = 0; i < tlbSize; i++) {
+            if (tlbASIDs[i] == asid)
+                translations[i].valid = false;
+        }
+    }
+
+    /**
+     * Return the number of address-space IDs this processor's TLB can tag
+     * entries with. Valid IDs are <tt>0</tt> to <tt>getNumASIDs() - 1</tt>.
+     *
+     * @return the number of address-space IDs.
+     */
+    public int getNumASIDs() {
+        Lib.assertTrue(usingTLB);
+
+        return numASIDs;
+    }
+
+    /**
+     * Return the current address-space ID.
+     *
+     * @return the current address-space ID.
+     */
+    public int getASID() {
+        Lib.assertTrue(usingTLB);
+
+        return currentASID;
+    }
+
+    /**
+     * 设置当前地址空间标识。
+     * Set the current address-space ID. Translations only use TLB entries
+     * tagged with the current ID, and <tt>writeTLBEntry()</tt> tags entries
+     * with it, so the kernel can switch address spaces without flushing the
+     * TLB.
+     *
+     * @param asid the new address-space ID.
+     */
+    public void setASID(int asid) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+        currentASID = asid;
+    }
+
+    /**
+     * Return the number of entries in each set of this processor's TLB. The
+     * TLB is fully associative if this equals <tt>getTLBSize()</tt>.
+     *
+     * @return the associativity of this processor's TLB.
+     */
+    public int getTLBWays() {
+        Lib.assertTrue(usingTLB);
+
+        return tlbWays;
+    }
+
+    /**
+     * 选出用来装入某个虚拟页的 TLB 项：优先选该组中无效的项，否则按替换策略选。
+     * Choose the TLB entry to fill with a translation for the specified
+     * virtual page: an invalid entry in the page's set if there is one,
+     * otherwise the victim chosen by <tt>Processor.tlbReplacement</tt>.
+     *
+     * @param vpn the virtual page number to be mapped.
+     * @return the index of the TLB entry to pass to <tt>writeTLBEntry()</tt>.
+     */
+    public int pickTLBEntry(int vpn) {
+        Lib.assertTrue(usingTLB);
+
+        int first = tlbSet(vpn);
+        for (int i = first; i < first + tlbWays; i++) {
             if (!translations[i].valid) {
                 return i;
             }
         }
-        return random.nextInt(tlbSize);
+        return tlbReplacement.victim(translations, first, tlbWays);
     }
 
     /**
@@ -232,18 +379,33 @@ public final class Processor {
      * @return the contents of the specified TLB entry.
      */
     public TranslationEntry readTLBEntry(int number) {
+        TranslationEntry entry = new TranslationEntry();
+        readTLBEntry(number, entry);
+        return entry;
+    }
+
+    /**
+     * Copy the specified TLB entry into <i>entry</i>, without allocating.
+     *
+     * @param number the index into the TLB.
+     * @param entry  the entry to overwrite with the contents of the TLB
+     *               entry.
+     */
+    public void readTLBEntry(int number, TranslationEntry entry) {
         Lib.assertTrue(usingTLB);
         Lib.assertTrue(number >= 0 && number < tlbSize);
 
-        return new TranslationEntry(translations[number]);
+        entry.set(translations[number]);
     }
 
     /**
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * A valid entry must be written to the set of its virtual page; use
+     * <tt>pickTLBEntry()</tt> to choose <i>number</i>. The contents of
+     * <i>entry</i> are copied into the TLB, so later changes to it have no
+     * effect. The entry is tagged with the current address-space ID.
      *
      * @param number the index into the TLB.
      * @param entry  the new contents of the TLB entry.
@@ -251,12 +413,24 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
         Lib.assertTrue(usingTLB);
         Lib.assertTrue(number >= 0 && number < tlbSize);
+        Lib.assertTrue(!entry.valid || tlbSet(entry.vpn) == number - number % tlbWays,
+                "TLB entry written to the wrong set");
 
-        translations[number] = new TranslationEntry(entry);
+        translations[number].set(entry);
+        tlbASIDs[number] = currentASID;
+        tlbReplacement.filled(number);
+    }
+
+    /**
+     * Return the first TLB entry of the set that can hold the specified
+     * virtual page.
+     */
+    private int tlbSet(int vpn) {
+        return (vpn % tlbSets) * tlbWays;
     }
 
     /**
-     * 将某个物理帧对应的entry失效
+     * 将某个物理帧对应的entry失效（所有地址空间中的）
      *
      * @param ppn 帧号
      */
@@ -264,7 +438,6 @@ public final class Processor {
         for (int i = 0; i < tlbSize; i++) {
             if (translations[i].ppn == ppn) {
                 translations[i].valid = false;
-                return;
             }
         }
     }
@@ -280,15 +453,175 @@ public final class Processor {
     }
 
     /**
-     * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * Return the physical memory. Its size is
+     * <tt>pageSize * getNumPhysPages()</tt>.
      *
-     * @return the main memory array.
+     * @return the main memory.
      */
-    public byte[] getMemory() {
+    public PhysicalMemory getMemory() {
         return mainMemory;
     }
 
+    /**
+     * Allocate physical memory of the specified size, where
+     * <tt>Processor.memory</tt> says: on the Java heap (<tt>heap</tt>), in a
+     * direct buffer (<tt>direct</tt>), or mapped onto
+     * <tt>Processor.memoryFile</tt> (<tt>mapped</tt>).
+     */
+    private PhysicalMemory allocateMemory(final long size) {
+        String kind = Config.getString("Processor.memory", "heap");
+
+        if (kind.equals("heap"))
+            return new PhysicalMemory(size);
+
+        if (kind.equals("direct"))
+            return PhysicalMemory.allocateDirect(size);
+
+        Lib.assertTrue(kind.equals("mapped"), "unknown Processor.memory " + kind);
+
+        final File file = new File(Machine.testDirectory(),
+                Config.getString("Processor.memoryFile", "nachos.mem"));
+        final PhysicalMemory[] memory = new PhysicalMemory[1];
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                memory[0] = PhysicalMemory.map(file, size);
+            }
+        });
+
+        Lib.assertTrue(memory[0] != null, "cannot map physical memory onto " + file);
+        return memory[0];
+    }
+
+    /**
+     * Open a trace file in the test directory, and arrange for it to be
+     * completed when Nachos exits.
+     */
+    private TraceWriter openTrace(String name) {
+        final File file = new File(Machine.testDirectory(), name);
+        final FileChannel[] channel = new FileChannel[1];
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                try {
+                    channel[0] = FileChannel.open(file.toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+                } catch (IOException ignored) {
+                }
+            }
+        });
+
+        Lib.assertTrue(channel[0] != null, "cannot open trace file " + file);
+
+        final TraceWriter writer = new TraceWriter(channel[0]);
+        privilege.addExitNotificationHandler(new Runnable() {
+            public void run() {
+                writer.close();
+            }
+        });
+        return writer;
+    }
+
+    /**
+     * Return the mnemonic of an instruction word, such as <tt>addiu</tt>, or
+     * <tt>invalid</tt> if it does not decode.
+     *
+     * @param instruction the instruction word.
+     * @return the mnemonic.
+     */
+    static String mnemonic(int instruction) {
+        String name = new DecodedInstruction(instruction).name;
+        return name.substring(0, name.indexOf(' '));
+    }
+
+    /**
+     * Return the mnemonic of an opcode, as counted in
+     * <tt>Stats.opcodeCounts</tt>. Opcodes 0 to 63 are the primary opcodes,
+     * 64 to 127 the <tt>func</tt> field of special instructions, and 128 to
+     * 159 the <tt>rt</tt> field of reg-imm instructions.
+     *
+     * @param opcode the opcode.
+     * @return the mnemonic.
+     */
+    static String opcodeName(int opcode) {
+        String name = opcodeInfo(opcode).name;
+        return name.substring(0, name.indexOf(' '));
+    }
+
+    /**
+     * Return the instruction class of an opcode: an index into
+     * <tt>classNames</tt>.
+     *
+     * @param opcode the opcode.
+     * @return the class.
+     */
+    static int opcodeClass(int opcode) {
+        Mips info = opcodeInfo(opcode);
+
+        switch (info.operation) {
+            case Mips.LOAD:
+            case Mips.LWL:
+            case Mips.LWR:
+                return classLoad;
+            case Mips.STORE:
+            case Mips.SWL:
+            case Mips.SWR:
+                return classStore;
+            case Mips.SYSCALL:
+                return classSyscall;
+            case Mips.INVALID:
+            case Mips.UNIMPL:
+                return classOther;
+            default:
+                return Lib.test(Mips.BRANCH, info.flags) ? classBranch : classALU;
+        }
+    }
+
+    private static Mips opcodeInfo(int opcode) {
+        if (opcode < 64)
+            return Mips.optable[opcode];
+        else if (opcode < 128)
+            return Mips.specialtable[opcode - 64];
+        else
+            return Mips.regimmtable[opcode - 128];
+    }
+
+    /**
+     * Zero the performance counters kept in <tt>Stats</tt> (instructions by
+     * opcode, exceptions by cause, load stalls, TLB hits and misses), for
+     * example between the phases of a benchmark.
+     */
+    public void resetCounters() {
+        privilege.stats.resetCounters();
+    }
+
+    /**
+     * 按字读物理内存。
+     * Read the little-endian word at the specified physical address. This is
+     * equivalent to <tt>getMemory().readWord(paddr)</tt>.
+     *
+     * @param paddr the word-aligned physical address to read.
+     * @return the word at <i>paddr</i>.
+     */
+    public int readPhysicalWord(long paddr) {
+        return mainMemory.readWord(paddr);
+    }
+
+    /**
+     * 按字写物理内存。
+     * Write a little-endian word to the specified physical address, and
+     * discard any predecoded instructions on its page, as a user store would.
+     *
+     * @param paddr the word-aligned physical address to write.
+     * @param value the word to store.
+     */
+    public void writePhysicalWord(long paddr, int value) {
+        mainMemory.writeWord(paddr, value);
+
+        int ppn = (int) (paddr / pageSize);
+        if (decodeCache[ppn] != null)
+            invalidDecodeCache(ppn);
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -330,6 +663,46 @@ public final class Processor {
         delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Return the decoded form of the instruction word at the specified
+     * physical address, decoding it and caching the result if this word has
+     * not been decoded since its page was last invalidated.
+     *
+     * @param paddr the word-aligned physical address of the instruction.
+     * @return the decoded instruction.
+     */
+    private DecodedInstruction lookupDecoded(long paddr) {
+        int ppn = (int) (paddr / pageSize);
+
+        DecodedInstruction[] page = decodeCache[ppn];
+        if (page == null)
+            page = decodeCache[ppn] = new DecodedInstruction[pageSize / 4];
+
+        int index = (int) (paddr % pageSize) / 4;
+        DecodedInstruction decoded = page[index];
+        if (decoded == null) {
+            decoded = new DecodedInstruction(mainMemory.readWord(paddr));
+            page[index] = decoded;
+        }
+
+        return decoded;
+    }
+
+    /**
+     * 使某个物理帧上的预解码指令失效。
+     * Discard any predecoded instructions cached for the specified physical
+     * page. Must be called whenever the contents of the page change other
+     * than through a user store instruction (which invalidates the page
+     * itself), e.g. when the frame is loaded, copied, swapped in or evicted.
+     *
+     * @param ppn the physical page whose contents have changed.
+     */
+    public void invalidDecodeCache(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+        decodeCache[ppn] = null;
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -347,16 +720,15 @@ public final class Processor {
      * @return the physical address.
      * @throws MipsException if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private long translate(int vaddr, int size, boolean writing)
             throws MipsException {
         // 各种检测
-        if (Lib.test(dbgProcessor))
-            System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-                    + (writing ? ", write" : ", read..."));
+        Debug.event(dbgProcessor, writing ? "\ttranslate vaddr=0x%08X, write"
+                : "\ttranslate vaddr=0x%08X, read...", vaddr & 0xFFFFFFFFL);
 
         // check alignment
         if ((vaddr & (size - 1)) != 0) {
-            Lib.debug(dbgProcessor, "\t\talignment error");
+            Debug.event(dbgProcessor, "\t\talignment error");
             throw new MipsException(exceptionAddressError, vaddr);
         }
 
@@ -374,39 +746,46 @@ public final class Processor {
                     translations[vpn] == null ||
                     !translations[vpn].valid) {
                 privilege.stats.numPageFaults++;
-                Lib.debug(dbgProcessor, "\t\tpage fault");
+                Debug.event(dbgProcessor, "\t\tpage fault");
                 throw new MipsException(exceptionPageFault, vaddr);
             }
 
             entry = translations[vpn];
+            lastTranslationIndex = vpn;
         }
-        // else, look through all TLB entries for matching vpn
+        // else, look through the TLB entries of the page's set for matching
+        // vpn and address space
         else { // todo project3 使用
-            for (int i = 0; i < tlbSize; i++) {
-                if (translations[i].valid && translations[i].vpn == vpn) {
+            int first = tlbSet(vpn);
+            for (int i = first; i < first + tlbWays; i++) {
+                if (translations[i].valid && translations[i].vpn == vpn
+                        && tlbASIDs[i] == currentASID) {
                     entry = translations[i];
+                    lastTranslationIndex = i;
                     break;
                 }
             }
             if (entry == null) {
                 privilege.stats.numTLBMisses++;
-                Lib.debug(dbgProcessor, "\t\tTLB miss");
+                Debug.event(dbgProcessor, "\t\tTLB miss");
                 throw new MipsException(exceptionTLBMiss, vaddr);
             }
+            privilege.stats.numTLBHits++;
+            tlbReplacement.touch(lastTranslationIndex);
         }
 
         // 在做一些合法性检查
         // check if trying to write a read-only page
         if (entry.readOnly && writing) {
-            System.out.println("to here vpn,ppn  " + vpn + " " + entry.ppn);
-            Lib.debug(dbgProcessor, "\t\tread-only exception");
+            Debug.event(dbgProcessor, "\t\tread-only exception vpn=%d ppn=%d",
+                    vpn, entry.ppn);
             throw new MipsException(exceptionReadOnly, vaddr);
         }
 
         // check if physical page number is out of range
         int ppn = entry.ppn;
         if (ppn < 0 || ppn >= numPhysPages) {
-            Lib.debug(dbgProcessor, "\t\tbad ppn");
+            Debug.event(dbgProcessor, "\t\tbad ppn");
             throw new MipsException(exceptionBusError, vaddr);
         }
 
@@ -422,14 +801,15 @@ public final class Processor {
             throw new MipsException(exceptionCopyOnWrite, vaddr);
         }
 
-        VMKernel.usedFrameManager.access(entry, writing);
+        // 只有 VMKernel 会设置页框管理器
+        if (VMKernel.usedFrameManager != null)
+            VMKernel.usedFrameManager.access(entry, writing);
 
 
         // 计算出物理地址
-        int paddr = (ppn * pageSize) + offset;
+        long paddr = ((long) ppn * pageSize) + offset;
 
-        if (Lib.test(dbgProcessor))
-            System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+        Debug.event(dbgProcessor, "\t\tpaddr=0x%08X", paddr);
         return paddr;
     }
 
@@ -443,18 +823,32 @@ public final class Processor {
      * @throws MipsException if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-        if (Lib.test(dbgProcessor))
-            System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
-                    + ", size=" + size);
+        Debug.event(dbgProcessor, "\treadMem vaddr=0x%08X, size=%d",
+                vaddr & 0xFFFFFFFFL, size);
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 //        System.out.println("read vaddr : " + vaddr);
-        int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-                size);
+        long paddr = translate(vaddr, size, false);
+
+        if (tracer != null)
+            tracer.memory(false, vaddr, paddr, size);
+
+        // translate() has checked the alignment, so halfwords and words can
+        // be read in one access instead of assembled byte by byte
+        int value;
+        switch (size) {
+            case 4:
+                value = mainMemory.readWord(paddr);
+                break;
+            case 2:
+                value = mainMemory.readHalfword(paddr);
+                break;
+            default:
+                value = mainMemory.readByte(paddr);
+                break;
+        }
 
-        if (Lib.test(dbgProcessor))
-            System.out.println("\t\tvalue read=0x" +
-                    Lib.toHexString(value, size * 2));
+        Debug.event(dbgProcessor, readFormats[size], value & 0xFFFFFFFFL);
 
         return value;
     }
@@ -470,15 +864,144 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
             throws MipsException {
-        if (Lib.test(dbgProcessor))
-            System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
-                    + ", size=" + size + ", value=0x"
-                    + Lib.toHexString(value, size * 2));
+        Debug.event(dbgProcessor, writeFormats[size], vaddr & 0xFFFFFFFFL,
+                value & 0xFFFFFFFFL);
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-                value);
+        long paddr = translate(vaddr, size, true);
+
+        if (tracer != null)
+            tracer.memory(true, vaddr, paddr, size);
+
+        switch (size) {
+            case 4:
+                mainMemory.writeWord(paddr, value);
+                break;
+            case 2:
+                mainMemory.writeHalfword(paddr, (short) value);
+                break;
+            default:
+                mainMemory.writeByte(paddr, (byte) value);
+                break;
+        }
+
+        // self-modifying code: drop stale decodes for the written page
+        int ppn = (int) (paddr / pageSize);
+        if (decodeCache[ppn] != null)
+            decodeCache[ppn] = null;
+    }
+
+    /**
+     * 访存的性能测试。
+     * Time guest loads and stores of each size through <tt>readMem()</tt>
+     * and <tt>writeMem()</tt>, against the same references assembled a byte
+     * at a time after <tt>translate()</tt>, as the processor used to make
+     * them. Each round loads, increments and stores every byte, halfword or
+     * word of up to 64 pages mapped one to one, and reports the best of three
+     * timed trials. Both ways must leave the same contents. Must be called before any user process runs;
+     * the page table is restored and the pages are cleared afterwards.
+     *
+     * @param rounds the number of passes over the pages.
+     */
+    public void memoryBenchmark(int rounds) {
+        // TLB 的内容和执行轨迹都不能被测试打乱
+        if (usingTLB || tracer != null) {
+            System.out.println("Processor: memory benchmark needs a page "
+                    + "table and no trace, skipped");
+            return;
+        }
+
+        int numPages = Math.min(64, numPhysPages);
+        int length = numPages * pageSize;
+
+        TranslationEntry[] savedTranslations = translations;
+        int savedTranslationIndex = lastTranslationIndex;
+
+        TranslationEntry[] identity = new TranslationEntry[numPages];
+        for (int i = 0; i < numPages; i++)
+            identity[i] = new TranslationEntry(i, i, true, false, false, false);
+        translations = identity;
+
+        StringBuilder line = new StringBuilder("Processor: " + numPages
+                + " pages of " + Config.getString("Processor.memory", "heap")
+                + " memory, " + rounds + " rounds:");
+        try {
+            for (int size = 1; size <= 4; size *= 2) {
+                long accesses = (long) rounds * (length / size);
+
+                // the first trial warms up; keep the best of the rest
+                long bytewiseTime = Long.MAX_VALUE;
+                for (int trial = 0; trial < 4; trial++) {
+                    long time = benchmarkBytewise(length, size, rounds);
+                    if (trial > 0)
+                        bytewiseTime = Math.min(bytewiseTime, time);
+                }
+                byte[] bytewise = new byte[length];
+                mainMemory.read(0, bytewise, 0, length);
+                mainMemory.clear(0, length);
+
+                long memTime = Long.MAX_VALUE;
+                for (int trial = 0; trial < 4; trial++) {
+                    long time = benchmarkMem(length, size, rounds);
+                    if (trial > 0)
+                        memTime = Math.min(memTime, time);
+                }
+                byte[] direct = new byte[length];
+                mainMemory.read(0, direct, 0, length);
+                mainMemory.clear(0, length);
+
+                Lib.assertTrue(Arrays.equals(bytewise, direct));
+
+                line.append(size == 1 ? " " : "; ").append(size)
+                        .append("-byte bytewise ")
+                        .append(tenths(bytewiseTime, accesses))
+                        .append(" ns, readMem/writeMem ")
+                        .append(tenths(memTime, accesses)).append(" ns");
+            }
+        } catch (MipsException e) {
+            Lib.assertNotReached("memory benchmark: " + e);
+        } finally {
+            translations = savedTranslations;
+            lastTranslationIndex = savedTranslationIndex;
+            for (int i = 0; i < numPages; i++)
+                decodeCache[i] = null;
+        }
+        System.out.println(line);
+    }
+
+    private long benchmarkMem(int length, int size, int rounds)
+            throws MipsException {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (int vaddr = 0; vaddr < length; vaddr += size)
+                writeMem(vaddr, size, readMem(vaddr, size) + 1);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long benchmarkBytewise(int length, int size, int rounds)
+            throws MipsException {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (int vaddr = 0; vaddr < length; vaddr += size) {
+                // what Lib.bytesToInt() and Lib.bytesFromInt() did
+                long paddr = translate(vaddr, size, false);
+                int value = 0;
+                for (int j = 0; j < size; j++)
+                    value |= (mainMemory.readByte(paddr + j) & 0xFF) << (j * 8);
+                value++;
+                paddr = translate(vaddr, size, true);
+                for (int j = 0; j < size; j++)
+                    mainMemory.writeByte(paddr + j, (byte) (value >> (j * 8)));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static String tenths(long elapsed, long count) {
+        long tenths = elapsed * 10 / Math.max(count, 1);
+        return tenths / 10 + "." + tenths % 10;
     }
 
     /**
@@ -573,6 +1096,20 @@ public final class Processor {
 
     public static final int exceptionCopyOnWrite = 8;
 
+    /**
+     * The number of opcodes counted in <tt>Stats.opcodeCounts</tt>.
+     */
+    static final int numOpcodes = 160;
+
+    static final int classLoad = 0, classStore = 1, classBranch = 2,
+            classALU = 3, classSyscall = 4, classOther = 5;
+    /**
+     * The names of the instruction classes, see <tt>opcodeClass()</tt>.
+     */
+    static final String[] classNames = {
+            "load", "store", "branch", "ALU", "syscall", "other"
+    };
+
     /**
      * The names of the CPU exceptions.
      */
@@ -673,14 +1210,31 @@ public final class Processor {
      */
     private int loadValue;
 
+    /**
+     * User instructions that may still retire before the next pending
+     * interrupt is due, and those retired whose ticks have not been added to
+     * <tt>Stats</tt> yet. See <tt>retireInstruction()</tt>.
+     */
+    private long ticksUntilDue, ticksPending;
+
     /**
      * <tt>true</tt> if using a software-managed TLB.
      */
     private final boolean usingTLB;
     /**
-     * Number of TLB entries.
+     * Number of TLB entries, the number of entries in each set, and the
+     * number of sets. A virtual page can only be cached in set
+     * <tt>vpn % tlbSets</tt>.
      */
-    private final int tlbSize = 4;
+    private final int tlbSize, tlbWays, tlbSets;
+    private final TLBReplacement tlbReplacement;
+    /**
+     * The number of address-space IDs, the ID each TLB entry is tagged with,
+     * and the ID of the running address space.
+     */
+    private final int numASIDs;
+    private final int[] tlbASIDs;
+    private int currentASID = 0;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -702,14 +1256,47 @@ public final class Processor {
     /**
      * Main memory for user programs.
      */
-    private final byte[] mainMemory;
+    private final PhysicalMemory mainMemory;
+    /**
+     * Predecoded instructions, indexed by physical page number and then by
+     * word within the page. A <tt>null</tt> page has nothing cached.
+     */
+    private final DecodedInstruction[][] decodeCache;
 
+    /**
+     * The index in <tt>translations</tt> of the entry used by the last
+     * successful call to <tt>translate()</tt>.
+     */
+    private int lastTranslationIndex;
+    /**
+     * The trace being written, or <tt>null</tt> if <tt>Processor.trace</tt>
+     * is not set.
+     */
+    private final TraceWriter tracer;
+    /**
+     * <tt>Stats.opcodeCounts</tt>, the per-opcode performance counters.
+     */
+    private final long[] opcodeCounts;
     /**
      * The kernel exception handler, called on every user exception.
      * 内核异常处理程序，在每个用户异常时调用
      */
     private Runnable exceptionHandler = null;
 
+    /**
+     * The <tt>Debug.event()</tt> formats of <tt>readMem()</tt> and
+     * <tt>writeMem()</tt>, by access size.
+     */
+    private static final String[] readFormats = {
+            null, "\t\tvalue read=0x%02X", "\t\tvalue read=0x%04X", null,
+            "\t\tvalue read=0x%08X"
+    };
+    private static final String[] writeFormats = {
+            null, "\twriteMem vaddr=0x%08X, size=1, value=0x%02X",
+            "\twriteMem vaddr=0x%08X, size=2, value=0x%04X", null,
+            "\twriteMem vaddr=0x%08X, size=4, value=0x%08X"
+    };
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
@@ -736,6 +1323,11 @@ public final class Processor {
 
         // 处理中断（硬件功能）
         public void handle() {
+            // 内核要看到准确的时间
+            flushTicks();
+
+            privilege.stats.exceptionCounts[cause]++;
+
             // 将异常索引写入 异常原因索引寄存器
             writeRegister(regCause, cause);
 
@@ -743,9 +1335,12 @@ public final class Processor {
             if (hasBadVAddr)
                 writeRegister(regBadVAddr, badVAddr);
 
-            if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+            if (Debug.test(dbgDisassemble) || Debug.test(dbgFullDisassemble))
                 System.out.println("exception: " + exceptionNames[cause]);
 
+            if (tracer != null)
+                tracer.exception(cause, hasBadVAddr ? badVAddr : 0);
+
             finishLoad();
 
             Lib.assertTrue(exceptionHandler != null);
@@ -768,8 +1363,14 @@ public final class Processor {
         public void run() throws MipsException {
             fetch(); // 取指令
             decode(); // 解码
+            // 读上一条 load 的目标寄存器（还在延迟槽里）
+            boolean stall = (decoded.reads & (1 << loadTarget)) != 0;
             execute(); // 执行
             writeBack(); // 写回
+
+            if (stall)
+                privilege.stats.numLoadStalls++;
+            opcodeCounts[decoded.opcode]++;
         }
 
         private boolean test(int flag) {
@@ -778,87 +1379,57 @@ public final class Processor {
 
         private void fetch() throws MipsException {
 //            System.out.println("fetch PC is " + registers[regPC]);
-            if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-                    Lib.test(dbgFullDisassemble))
+            if ((Debug.test(dbgDisassemble) && !Debug.test(dbgProcessor)) ||
+                    Debug.test(dbgFullDisassemble))
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
                         + "\t");
-            value = readMem(registers[regPC], 4);
+            // 取指只做地址转换（保留 TLB miss / 缺页等语义），指令字的解码结果从预解码缓存中取
+            decoded = lookupDecoded(translate(registers[regPC], 4, false));
+            value = decoded.value;
+
+            if (tracer != null)
+                tracer.instruction(registers[regPC], value);
 //            System.out.println("fetch success");
         }
 
         /**
-         * 根据 mips 的指令设计进行解码
+         * 根据 mips 的指令设计进行解码。与寄存器无关的字段已经由
+         * <tt>DecodedInstruction</tt> 预先解出，这里只计算依赖寄存器的部分。
          */
         private void decode() {
 //            System.out.println("decode()");
-            op = Lib.extract(value, 26, 6);
-            rs = Lib.extract(value, 21, 5);
-            rt = Lib.extract(value, 16, 5);
-            rd = Lib.extract(value, 11, 5);
-            sh = Lib.extract(value, 6, 5);
-            func = Lib.extract(value, 0, 6);
-            target = Lib.extract(value, 0, 26);
-            imm = Lib.extend(value, 0, 16);
-
-            Mips info;
-            switch (op) {
-                case 0:
-                    info = Mips.specialtable[func];
-                    break;
-                case 1:
-                    info = Mips.regimmtable[rt];
-                    break;
-                default:
-                    info = Mips.optable[op];
-                    break;
-            }
-
-            operation = info.operation;
-            name = info.name;
-            format = info.format;
-            flags = info.flags;
+            op = decoded.op;
+            rs = decoded.rs;
+            rt = decoded.rt;
+            rd = decoded.rd;
+            sh = decoded.sh;
+            func = decoded.func;
+            target = decoded.target;
+            imm = decoded.imm;
+
+            operation = decoded.operation;
+            name = decoded.name;
+            format = decoded.format;
+            flags = decoded.flags;
+            size = decoded.size;
+            dstReg = decoded.dstReg;
 
             mask = 0xFFFFFFFF;
             branch = true;
 
-            // get memory access size
-            if (test(Mips.SIZEB))
-                size = 1;
-            else if (test(Mips.SIZEH))
-                size = 2;
-            else if (test(Mips.SIZEW))
-                size = 4;
-            else
-                size = 0;
-
             // get nextPC
             nextPC = registers[regNextPC] + 4;
 
-            // get dstReg
-            if (test(Mips.DSTRA))
-                dstReg = regRA;
-            else if (format == Mips.IFMT)
-                dstReg = rt;
-            else if (format == Mips.RFMT)
-                dstReg = rd;
-            else
-                dstReg = -1;
-
             // get jtarget
             if (format == Mips.RFMT)
                 jtarget = registers[rs];
             else if (format == Mips.IFMT)
-                jtarget = registers[regNextPC] + (imm << 2);
+                jtarget = registers[regNextPC] + (decoded.signedImm << 2);
             else if (format == Mips.JFMT)
                 jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
             else
                 jtarget = -1;
 
-            // get imm
-            if (test(Mips.UNSIGNED)) {
-                imm &= 0xFFFF;
-            }
-
             // get addr
             addr = registers[rs] + imm;
 
@@ -879,13 +1450,13 @@ public final class Processor {
                 src2 &= 0xFFFFFFFFL;
             }
 
-            if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+            if (Debug.test(dbgDisassemble) || Debug.test(dbgFullDisassemble))
                 print();
         }
 
         private void print() {
-            if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-                    !Lib.test(dbgFullDisassemble))
+            if (Debug.test(dbgDisassemble) && Debug.test(dbgProcessor) &&
+                    !Debug.test(dbgFullDisassemble))
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
                         + "\t");
 
@@ -917,7 +1488,7 @@ public final class Processor {
                         minCharsPrinted += 2;
                         maxCharsPrinted += 3;
 
-                        if (Lib.test(dbgFullDisassemble)) {
+                        if (Debug.test(dbgFullDisassemble)) {
                             System.out.print("#0x" +
                                     Lib.toHexString(registers[rs]));
                             minCharsPrinted += 11;
@@ -929,7 +1500,7 @@ public final class Processor {
                         minCharsPrinted += 2;
                         maxCharsPrinted += 3;
 
-                        if (Lib.test(dbgFullDisassemble) &&
+                        if (Debug.test(dbgFullDisassemble) &&
                                 (i != 0 || !test(Mips.DST)) &&
                                 !test(Mips.DELAYEDLOAD)) {
                             System.out.print("#0x" +
@@ -961,7 +1532,7 @@ public final class Processor {
                         minCharsPrinted += 4;
                         maxCharsPrinted += 5;
 
-                        if (Lib.test(dbgFullDisassemble)) {
+                        if (Debug.test(dbgFullDisassemble)) {
                             System.out.print("#0x" +
                                     Lib.toHexString(registers[rs]));
                             minCharsPrinted += 11;
@@ -1000,8 +1571,8 @@ public final class Processor {
                 }
             }
 
-            if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-                    !Lib.test(dbgFullDisassemble))
+            if (Debug.test(dbgDisassemble) && Debug.test(dbgProcessor) &&
+                    !Debug.test(dbgFullDisassemble))
                 System.out.print("\n");
         }
 
@@ -1101,6 +1672,8 @@ public final class Processor {
 
                 case Mips.SYSCALL:
                     // todo syscall
+                    // 系统调用由内核完成，在这里就算执行过了
+                    opcodeCounts[decoded.opcode]++;
                     // 硬件发出中断，表示要进行系统调用
                     throw new MipsException(exceptionSyscall);
 
@@ -1199,7 +1772,7 @@ public final class Processor {
                 registers[dstReg] = (int) dst;
 
             if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-                if (Lib.test(dbgFullDisassemble)) {
+                if (Debug.test(dbgFullDisassemble)) {
                     System.out.print("#0x" + Lib.toHexString((int) dst));
                     if (test(Mips.DELAYEDLOAD))
                         System.out.print(" (delayed load)");
@@ -1212,12 +1785,13 @@ public final class Processor {
 
             advancePC(nextPC);
 
-            if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-                    Lib.test(dbgFullDisassemble))
+            if ((Debug.test(dbgDisassemble) && !Debug.test(dbgProcessor)) ||
+                    Debug.test(dbgFullDisassemble))
                 System.out.print("\n");
         }
 
         // state used to execute a single instruction
+        DecodedInstruction decoded;
         int value, op, rs, rt, rd, sh, func, target, imm;
         int operation, format, flags;
         String name;
@@ -1229,6 +1803,96 @@ public final class Processor {
         boolean branch;
     }
 
+    /**
+     * The register-independent part of a decoded instruction word. Instances
+     * are immutable and cached per physical page by <tt>lookupDecoded()</tt>,
+     * so a word that is executed repeatedly is only decoded once.
+     */
+    private static class DecodedInstruction {
+        DecodedInstruction(int value) {
+            this.value = value;
+
+            op = Lib.extract(value, 26, 6);
+            rs = Lib.extract(value, 21, 5);
+            rt = Lib.extract(value, 16, 5);
+            rd = Lib.extract(value, 11, 5);
+            sh = Lib.extract(value, 6, 5);
+            func = Lib.extract(value, 0, 6);
+            target = Lib.extract(value, 0, 26);
+            signedImm = Lib.extend(value, 0, 16);
+
+            switch (op) {
+                case 0:
+                    opcode = 64 + func;
+                    break;
+                case 1:
+                    opcode = 128 + rt;
+                    break;
+                default:
+                    opcode = op;
+                    break;
+            }
+            Mips info = opcodeInfo(opcode);
+
+            operation = info.operation;
+            name = info.name;
+            format = info.format;
+            flags = info.flags;
+
+            // get memory access size
+            if (Lib.test(Mips.SIZEB, flags))
+                size = 1;
+            else if (Lib.test(Mips.SIZEH, flags))
+                size = 2;
+            else if (Lib.test(Mips.SIZEW, flags))
+                size = 4;
+            else
+                size = 0;
+
+            // get dstReg
+            if (Lib.test(Mips.DSTRA, flags))
+                dstReg = regRA;
+            else if (format == Mips.IFMT)
+                dstReg = rt;
+            else if (format == Mips.RFMT)
+                dstReg = rd;
+            else
+                dstReg = -1;
+
+            // get imm
+            if (Lib.test(Mips.UNSIGNED, flags))
+                imm = signedImm & 0xFFFF;
+            else
+                imm = signedImm;
+
+            // get the registers read
+            int reads = 0;
+            if (format != 0 && format != Mips.JFMT &&
+                    !Lib.test(Mips.SRC1SH, flags) && operation != Mips.LUI &&
+                    operation != Mips.MFHI && operation != Mips.MFLO)
+                reads |= 1 << rs;
+            if (format == Mips.RFMT ? operation != Mips.JUMP &&
+                    operation != Mips.MFHI && operation != Mips.MFLO &&
+                    operation != Mips.MTHI && operation != Mips.MTLO
+                    : operation == Mips.BEQ || operation == Mips.BNE ||
+                    operation == Mips.STORE || operation == Mips.SWL ||
+                    operation == Mips.SWR || operation == Mips.LWL ||
+                    operation == Mips.LWR)
+                reads |= 1 << rt;
+            this.reads = reads & ~1;
+        }
+
+        final int value, op, rs, rt, rd, sh, func, target, imm, signedImm;
+        /**
+         * The opcode counted in <tt>Stats.opcodeCounts</tt>, and a mask of the
+         * general registers (other than $0) this instruction reads.
+         */
+        final int opcode, reads;
+        final int operation, format, flags;
+        final String name;
+        final int size, dstReg;
+    }
+
     private static class Mips {
         Mips() {
         }
@@ -1498,16 +2162,17 @@ public final class Processor {
     }
 
     public static void copy(int srcPpn, int destPpn) {
-        byte[] mainMemory = Machine.processor().mainMemory;
-        int src = srcPpn * pageSize;
-        int dest = destPpn * pageSize;
+        long src = (long) srcPpn * pageSize;
+        long dest = (long) destPpn * pageSize;
         // 物理帧的复制
-        System.arraycopy(mainMemory, src, mainMemory, dest, pageSize);
+        Machine.processor().mainMemory.copy(src, dest, pageSize);
+        Machine.processor().invalidDecodeCache(destPpn);
     }
 
     public static byte[] getOnePage(int ppn) {
         byte[] bytes = new byte[pageSize];
-        System.arraycopy(Machine.processor().mainMemory, ppn * pageSize, bytes, 0, pageSize);
+        Machine.processor().mainMemory.read((long) ppn * pageSize, bytes, 0,
+                pageSize);
         return bytes;
     }
 
@@ -2,6 +2,9 @@
 
 package nachos.machine;
 
+import java.util.Arrays;
+import java.util.Comparator;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -24,9 +27,70 @@ public final class Stats {
         System.out.println("Console I/O: reads " + numConsoleReads
                 + ", writes " + numConsoleWrites);
         System.out.println("Paging: page faults " + numPageFaults
+                + ", TLB hits " + numTLBHits
                 + ", TLB misses " + numTLBMisses);
         System.out.println("Network I/O: received " + numPacketsReceived
                 + ", sent " + numPacketsSent);
+        if (numThreadPoolHits + numThreadPoolMisses > 0) {
+            System.out.println("Thread pool: hits " + numThreadPoolHits
+                    + ", misses " + numThreadPoolMisses);
+        }
+
+        long[] classCounts = new long[Processor.classNames.length];
+        for (int i = 0; i < Processor.numOpcodes; i++)
+            classCounts[Processor.opcodeClass(i)] += opcodeCounts[i];
+
+        long numInstructions = 0;
+        for (long count : classCounts)
+            numInstructions += count;
+        if (numInstructions == 0)
+            return;
+
+        StringBuilder line = new StringBuilder("Instructions: retired "
+                + numInstructions);
+        for (int i = 0; i < classCounts.length; i++)
+            line.append(", ").append(Processor.classNames[i]).append(" ")
+                    .append(classCounts[i]);
+        System.out.println(line.append(", load stalls ").append(numLoadStalls));
+
+        line = new StringBuilder("Exceptions:");
+        for (int i = 0; i < exceptionCounts.length; i++) {
+            if (exceptionCounts[i] > 0)
+                line.append(" ").append(Processor.exceptionNames[i].trim())
+                        .append(" ").append(exceptionCounts[i]).append(",");
+        }
+        System.out.println(line.substring(0, line.length() - 1));
+
+        // 按执行次数从多到少
+        Integer[] opcodes = new Integer[Processor.numOpcodes];
+        for (int i = 0; i < opcodes.length; i++)
+            opcodes[i] = i;
+        Arrays.sort(opcodes, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(opcodeCounts[b], opcodeCounts[a]);
+            }
+        });
+
+        line = new StringBuilder("Opcodes:");
+        for (int i : opcodes) {
+            if (opcodeCounts[i] > 0)
+                line.append(" ").append(Processor.opcodeName(i)).append(" ")
+                        .append(opcodeCounts[i]).append(",");
+        }
+        System.out.println(line.substring(0, line.length() - 1));
+    }
+
+    /**
+     * Zero the processor's performance counters: the per-opcode and
+     * per-exception counts, the load stalls and the TLB hits and misses.
+     * Simulated time and the other statistics are kept.
+     */
+    public void resetCounters() {
+        Arrays.fill(opcodeCounts, 0);
+        Arrays.fill(exceptionCounts, 0);
+        numLoadStalls = 0;
+        numTLBHits = 0;
+        numTLBMisses = 0;
     }
 
     /**
@@ -63,6 +127,10 @@ public final class Stats {
      * The total number of page faults that have occurred.
      */
     public int numPageFaults = 0;
+    /**
+     * The total number of translations that hit in the TLB.
+     */
+    public long numTLBHits = 0;
     /**
      * The total number of TLB misses that have occurred.
      */
@@ -75,6 +143,31 @@ public final class Stats {
      * The total number of packets Nachos has received from the network.
      */
     public int numPacketsReceived = 0;
+    /**
+     * The number of TCBs started on a pooled Java thread.
+     */
+    public int numThreadPoolHits = 0;
+    /**
+     * The number of TCBs that needed a new Java thread while the thread pool
+     * was enabled.
+     */
+    public int numThreadPoolMisses = 0;
+
+    /**
+     * The number of user instructions retired with each opcode, indexed as
+     * described by <tt>Processor.opcodeName()</tt>.
+     */
+    public final long[] opcodeCounts = new long[Processor.numOpcodes];
+    /**
+     * The number of user exceptions raised with each cause.
+     */
+    public final long[] exceptionCounts =
+            new long[Processor.exceptionNames.length];
+    /**
+     * The number of instructions that read the target of a load in the load
+     * delay slot, and so would stall a pipelined processor.
+     */
+    public long numLoadStalls = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
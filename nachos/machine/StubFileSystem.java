@@ -126,9 +126,16 @@ public class StubFileSystem implements FileSystem {
             if (!open)
                 return -1;
 
-            try {
-                delay();
+            delay();
+
+            return readUntimed(pos, buf, offset, length);
+        }
 
+        int readUntimed(int pos, byte[] buf, int offset, int length) {
+            if (!open)
+                return -1;
+
+            try {
                 file.seek(pos);
                 return Math.max(0, file.read(buf, offset, length));
             } catch (IOException e) {
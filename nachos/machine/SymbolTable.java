@@ -0,0 +1,52 @@
+package nachos.machine;
+
+import java.util.Arrays;
+
+/**
+ * The procedures of a COFF executable, as read by
+ * <tt>Coff.readSymbolTable()</tt>, for mapping addresses back to function
+ * names.
+ */
+public final class SymbolTable {
+    /**
+     * Allocate a symbol table.
+     *
+     * @param addresses the start address of each procedure, in ascending
+     *                  order.
+     * @param names     the name of each procedure.
+     */
+    SymbolTable(int[] addresses, String[] names) {
+        Lib.assertTrue(addresses.length == names.length);
+
+        this.addresses = addresses;
+        this.names = names;
+    }
+
+    /**
+     * Return the number of procedures in this table.
+     *
+     * @return the number of procedures.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Return the name of the procedure containing the specified address: the
+     * one with the highest start address not above it.
+     *
+     * @param vaddr the virtual address to look up.
+     * @return the procedure name, or <tt>null</tt> if <i>vaddr</i> is below
+     * every procedure.
+     */
+    public String lookup(int vaddr) {
+        int i = Arrays.binarySearch(addresses, vaddr);
+        if (i < 0)
+            i = -i - 2;
+
+        return i < 0 ? null : names[i];
+    }
+
+    private final int[] addresses;
+    private final String[] names;
+}
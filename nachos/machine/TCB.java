@@ -5,7 +5,10 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
@@ -39,6 +42,49 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
         TCB.privilege = privilege;
         privilege.tcb = new TCBPrivilege();
+
+        String threads = Config.getString("TCB.threads", "platform");
+        Lib.assertTrue(threads.equals("platform") || threads.equals("virtual"),
+                "unknown TCB.threads " + threads);
+        if (threads.equals("virtual"))
+            virtualThreadBuilder = findVirtualThreadBuilder();
+
+        threadLimit = Config.getInteger("TCB.maxThreads",
+                virtualThreadBuilder != null ? maxVirtualThreads : maxThreads);
+
+        // monitor is the original handoff; virtual threads cannot use it
+        handoff = Config.getString("TCB.handoff",
+                virtualThreadBuilder != null ? "park" : "monitor");
+        Lib.assertTrue(handoff.equals("park") || handoff.equals("spin")
+                || handoff.equals("monitor"), "unknown TCB.handoff " + handoff);
+        // a virtual thread blocked in wait() would pin its carrier thread
+        Lib.assertTrue(virtualThreadBuilder == null || !handoff.equals("monitor"),
+                "TCB.threads = virtual needs TCB.handoff = park or spin");
+        useMonitor = handoff.equals("monitor");
+        // spinning only helps if the other thread can run meanwhile
+        spinLimit = handoff.equals("spin")
+                && Runtime.getRuntime().availableProcessors() > 1 ? spinCount : 0;
+
+        poolSize = Config.getInteger("TCB.poolSize", 0);
+        Lib.assertTrue(poolSize >= 0);
+    }
+
+    /**
+     * Return a <tt>Thread.Builder</tt> for virtual threads, and the method
+     * that creates an unstarted thread from it. Looked up reflectively so
+     * that Nachos still builds and runs, with platform threads, on JDKs
+     * without virtual threads.
+     */
+    private static Object findVirtualThreadBuilder() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            unstartedMethod = Class.forName("java.lang.Thread$Builder")
+                    .getMethod("unstarted", Runnable.class);
+            return builder;
+        } catch (ReflectiveOperationException e) {
+            Lib.assertNotReached("TCB.threads = virtual needs Java 21 or later");
+            return null;
+        }
     }
 
     /**
@@ -65,7 +111,7 @@ public final class TCB {
         /* Make sure there aren't too many running TCBs already. This
          * limitation exists in an effort to prevent wild thread usage.
          */
-        Lib.assertTrue(runningThreads.size() < maxThreads);
+        Lib.assertTrue(runningThreads.size() < threadLimit);
 
         isFirstTCB = (currentTCB == null);
 
@@ -84,23 +130,39 @@ public final class TCB {
 
         this.target = target;
 
-        if (!isFirstTCB) {
+        if (!isFirstTCB && !idleCarriers.isEmpty()) {
+            /* A Java thread left over from a destroyed TCB is parked in the
+             * pool. Hand this TCB to it instead of making a new one, and wait
+             * for it to wake us up from threadroot() as below.
+             */
+            privilege.stats.numThreadPoolHits++;
+
+            carrier = idleCarriers.remove(idleCarriers.size() - 1);
+            javaThread = carrier.thread;
+
+            currentTCB.running = false;
+
+            carrier.next = this;
+            LockSupport.unpark(javaThread);
+            currentTCB.waitForInterrupt();
+        } else if (!isFirstTCB) {
             /* If this is not the first TCB, we have to make a new Java thread
              * to run it. Creating Java threads is a privileged operation.
              */
-            tcbTarget = new Runnable() {
-                public void run() {
-                    threadroot();
-                }
-            };
+            if (poolSize > 0)
+                privilege.stats.numThreadPoolMisses++;
+
+            carrier = new Carrier();
+            carrier.next = this;
 
             privilege.doPrivileged(new Runnable() {
                 public void run() {
-                    javaThread = new Thread(tcbTarget);
+                    javaThread = newJavaThread(carrier);
 //                    System.out.println("tcb : "+this);
 //                    System.out.println("tcb here " + javaThread.getName());
                 }
             });
+            carrier.thread = javaThread;
 
             /* The Java thread hasn't yet started, but we need to get it
              * blocking in yield(). We do this by temporarily turning off the
@@ -123,6 +185,43 @@ public final class TCB {
         }
     }
 
+    /**
+     * Create the Java thread for a TCB: a virtual thread if
+     * <tt>TCB.threads</tt> is <tt>virtual</tt>, otherwise a platform thread.
+     */
+    private static Thread newJavaThread(Runnable target) {
+        if (virtualThreadBuilder == null)
+            return new Thread(target);
+
+        try {
+            return (Thread) unstartedMethod.invoke(virtualThreadBuilder, target);
+        } catch (ReflectiveOperationException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Test if TCBs run on virtual threads (<tt>TCB.threads</tt> is
+     * <tt>virtual</tt>).
+     *
+     * @return <tt>true</tt> if TCBs run on virtual threads.
+     */
+    public static boolean usesVirtualThreads() {
+        return virtualThreadBuilder != null;
+    }
+
+    /**
+     * Return how a TCB hands the processor to another (<tt>TCB.handoff</tt>):
+     * <tt>park</tt>, <tt>spin</tt> or <tt>monitor</tt>. The default is
+     * <tt>monitor</tt> on platform threads and <tt>park</tt> on virtual
+     * threads.
+     *
+     * @return the handoff method.
+     */
+    public static String handoff() {
+        return handoff;
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -249,6 +348,15 @@ public final class TCB {
             runningThreads.removeElement(this);
             if (runningThreads.isEmpty())
                 privilege.exit(0);
+
+            /* Virtual threads are daemon threads, so if the first TCB's
+             * platform thread returned, the JVM would exit with them still
+             * running. Keep it alive until Nachos exits.
+             */
+            if (isFirstTCB && virtualThreadBuilder != null) {
+                while (true)
+                    LockSupport.park();
+            }
         } catch (Throwable e) {
             System.out.print("\n");
             e.printStackTrace();
@@ -273,6 +381,15 @@ public final class TCB {
         waitForInterrupt();
 
         if (done) {
+            /* Offer our Java thread to the pool now, while the TCB that
+             * destroyed us is still waiting, so that its next start() can
+             * already reuse it.
+             */
+            if (carrier != null && idleCarriers.size() < poolSize) {
+                carrier.pooled = true;
+                idleCarriers.add(carrier);
+            }
+
             currentTCB.interrupt();
             throw new ThreadDeath();
         }
@@ -292,8 +409,28 @@ public final class TCB {
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * Unless <tt>TCB.handoff</tt> is <tt>monitor</tt>, this parks the Java
+     * thread instead, which avoids inflating the monitor and the extra
+     * wakeup of <tt>notify()</tt> on every switch. With <tt>spin</tt>, it
+     * first spins briefly in case the switch back is quick, which only
+     * pays off with a spare host CPU.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+        if (useMonitor) {
+            waitForMonitor();
+            return;
+        }
+
+        for (int i = 0; i < spinLimit && !running; i++)
+            Thread.onSpinWait();
+
+        while (!running)
+            LockSupport.park(this);
+    }
+
+    private synchronized void waitForMonitor() {
         while (!running) {
             try {
                 wait();
@@ -307,10 +444,21 @@ public final class TCB {
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
      * and signalling the monitor bound to it. Used in the ping-pong process of
      * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * TCB. Unparks this TCB's thread instead, unless <tt>TCB.handoff</tt> is
+     * <tt>monitor</tt>.
      * also see : waitForInterrupt()
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+        if (useMonitor) {
+            notifyMonitor();
+            return;
+        }
+
+        running = true;
+        LockSupport.unpark(javaThread);
+    }
+
+    private synchronized void notifyMonitor() {
         running = true;
         notify();
     }
@@ -338,10 +486,40 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, with platform threads.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The default maximum number of TCBs when they run on virtual threads,
+     * which cost a small heap-allocated stack instead of an OS thread.
+     */
+    public static final int maxVirtualThreads = 100000;
+
+    /**
+     * The maximum number of TCBs in this run, set by <tt>TCB.maxThreads</tt>.
+     */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * The virtual thread builder, or <tt>null</tt> to use platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method unstartedMethod;
+
+    /**
+     * How TCBs hand off the processor, set by <tt>TCB.handoff</tt>.
+     */
+    private static String handoff = "monitor";
+    private static boolean useMonitor = true;
+    private static int spinLimit = 0;
+
+    /**
+     * The number of times <tt>waitForInterrupt()</tt> spins before parking,
+     * with <tt>spin</tt> handoff.
+     */
+    private static final int spinCount = 2000;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -398,7 +576,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -410,7 +588,50 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /**
+     * The Java thread of this TCB, unless this is the first TCB.
+     */
+    private Carrier carrier = null;
+
+    /**
+     * The maximum number of idle Java threads kept for reuse, set by
+     * <tt>TCB.poolSize</tt>. 0 disables the pool.
+     */
+    private static int poolSize = 0;
+
+    /**
+     * The idle Java threads, parked in <tt>Carrier.run()</tt>. Only changed
+     * by the running TCB, or by a destroyed TCB while the TCB that destroyed
+     * it waits.
+     */
+    private static final ArrayList<Carrier> idleCarriers = new ArrayList<>();
+
+    /**
+     * The body of every Java thread but the first. Runs the TCB it is given
+     * and, if that TCB put it in the pool when it was destroyed, parks until
+     * <tt>start()</tt> gives it another.
+     */
+    private static class Carrier implements Runnable {
+        public void run() {
+            while (true) {
+                TCB tcb;
+                while ((tcb = next) == null)
+                    LockSupport.park(this);
+                next = null;
+                pooled = false;
+
+                tcb.threadroot();
+
+                if (!pooled)
+                    return;
+            }
+        }
+
+        Thread thread;
+        volatile TCB next = null;
+        boolean pooled = false;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
         public void associateThread(KThread thread) {
@@ -0,0 +1,177 @@
+package nachos.machine;
+
+import java.util.Random;
+
+/**
+ * TLB 替换策略。
+ * A replacement policy for the processor's TLB, chosen by
+ * <tt>Processor.tlbReplacement</tt>: <tt>random</tt> (the default),
+ * <tt>fifo</tt>, <tt>lru</tt> or <tt>nru</tt>.
+ *
+ * <p>
+ * The processor tells the policy about every TLB hit and every fill, and
+ * asks it for a victim when the kernel refills a set whose entries are all
+ * valid. Invalid entries are always refilled first, without asking the
+ * policy.
+ */
+abstract class TLBReplacement {
+    /**
+     * Allocate the named policy for a TLB of the specified size.
+     *
+     * @param name    the policy name.
+     * @param tlbSize the number of TLB entries.
+     * @return the new policy.
+     */
+    static TLBReplacement create(String name, int tlbSize) {
+        if (name.equals("random"))
+            return new RandomReplacement();
+        else if (name.equals("fifo"))
+            return new FifoReplacement(tlbSize);
+        else if (name.equals("lru"))
+            return new LruReplacement(tlbSize);
+        else if (name.equals("nru"))
+            return new NruReplacement(tlbSize);
+
+        Lib.assertNotReached("unknown Processor.tlbReplacement " + name);
+        return null;
+    }
+
+    /**
+     * Note that a translation has just used the specified entry.
+     *
+     * @param index the TLB entry.
+     */
+    abstract void touch(int index);
+
+    /**
+     * Note that the kernel has just filled the specified entry.
+     *
+     * @param index the TLB entry.
+     */
+    abstract void filled(int index);
+
+    /**
+     * Choose the entry to evict from a set of valid entries.
+     *
+     * @param tlb   the TLB.
+     * @param first the first entry of the set.
+     * @param ways  the number of entries in the set.
+     * @return the entry to evict.
+     */
+    abstract int victim(TranslationEntry[] tlb, int first, int ways);
+
+    /**
+     * Evict a random entry. With a fully associative TLB this picks the same
+     * entries as the original, hard-wired policy.
+     */
+    private static class RandomReplacement extends TLBReplacement {
+        void touch(int index) {
+        }
+
+        void filled(int index) {
+        }
+
+        int victim(TranslationEntry[] tlb, int first, int ways) {
+            return first + random.nextInt(ways);
+        }
+
+        private final Random random = new Random(0);
+    }
+
+    /**
+     * Evict the entry that was filled longest ago.
+     */
+    private static class FifoReplacement extends TLBReplacement {
+        FifoReplacement(int tlbSize) {
+            filledAt = new long[tlbSize];
+        }
+
+        void touch(int index) {
+        }
+
+        void filled(int index) {
+            filledAt[index] = ++numFilled;
+        }
+
+        int victim(TranslationEntry[] tlb, int first, int ways) {
+            return oldest(filledAt, first, ways);
+        }
+
+        private final long[] filledAt;
+        private long numFilled = 0;
+    }
+
+    /**
+     * Evict the entry that was used longest ago.
+     */
+    private static class LruReplacement extends TLBReplacement {
+        LruReplacement(int tlbSize) {
+            usedAt = new long[tlbSize];
+        }
+
+        void touch(int index) {
+            usedAt[index] = ++numUsed;
+        }
+
+        void filled(int index) {
+            usedAt[index] = ++numUsed;
+        }
+
+        int victim(TranslationEntry[] tlb, int first, int ways) {
+            return oldest(usedAt, first, ways);
+        }
+
+        private final long[] usedAt;
+        private long numUsed = 0;
+    }
+
+    /**
+     * Evict an entry from the lowest class of (referenced, dirty), where an
+     * entry is referenced if it has been used since the set last ran out of
+     * unreferenced entries.
+     */
+    private static class NruReplacement extends TLBReplacement {
+        NruReplacement(int tlbSize) {
+            referenced = new boolean[tlbSize];
+        }
+
+        void touch(int index) {
+            referenced[index] = true;
+        }
+
+        void filled(int index) {
+            referenced[index] = true;
+        }
+
+        int victim(TranslationEntry[] tlb, int first, int ways) {
+            int best = first, bestClass = Integer.MAX_VALUE;
+
+            for (int i = first; i < first + ways; i++) {
+                int entryClass = (referenced[i] ? 2 : 0) + (tlb[i].dirty ? 1 : 0);
+                if (entryClass < bestClass) {
+                    best = i;
+                    bestClass = entryClass;
+                }
+            }
+
+            // every entry was referenced: start a new period for the set
+            if (bestClass >= 2) {
+                for (int i = first; i < first + ways; i++)
+                    referenced[i] = false;
+            }
+
+            return best;
+        }
+
+        private final boolean[] referenced;
+    }
+
+    private static int oldest(long[] stamps, int first, int ways) {
+        int oldest = first;
+        for (int i = first + 1; i < first + ways; i++) {
+            if (stamps[i] < stamps[oldest])
+                oldest = i;
+        }
+        return oldest;
+    }
+}
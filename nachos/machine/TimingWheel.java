@@ -0,0 +1,371 @@
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 分层时间轮。
+ * A hierarchical timing wheel: a priority queue of timers keyed on a
+ * <tt>long</tt> time, with O(1) <tt>schedule()</tt> and <tt>cancel()</tt> and
+ * amortized O(1) expiry.
+ *
+ * <p>
+ * The wheel has <tt>numLevels</tt> levels of 64 slots. A timer is filed on
+ * the level of the highest 6-bit digit in which its time differs from the
+ * wheel's current time, in the slot given by that digit, so level 0 holds
+ * timers due in the current run of 64 ticks and each higher level is 64
+ * times coarser. When the current time reaches the start of a slot on a
+ * higher level, the slot is cascaded into the lower levels. A bitmap of the
+ * non-empty slots on each level makes finding the next one a single
+ * bit scan.
+ *
+ * <p>
+ * Timers with the same time expire in the order they were scheduled.
+ *
+ * @param <T> the type of the value carried by each timer.
+ */
+public final class TimingWheel<T> {
+    /**
+     * Allocate a new, empty timing wheel whose current time is 0.
+     */
+    public TimingWheel() {
+    }
+
+    /**
+     * Add a timer that expires at the specified time.
+     *
+     * @param time  the expiry time. Must not be earlier than the time of the
+     *              last timer returned by <tt>poll()</tt>.
+     * @param value the value carried by the timer.
+     * @return the new timer, which can be passed to <tt>cancel()</tt>.
+     */
+    public Entry<T> schedule(long time, T value) {
+        Lib.assertTrue(time >= current);
+
+        Entry<T> entry = new Entry<T>(time, value, numScheduled++);
+        insert(entry);
+        size++;
+
+        return entry;
+    }
+
+    /**
+     * Remove a timer that has not expired yet.
+     *
+     * @param entry the timer to remove.
+     * @return <tt>true</tt> if the timer was removed, or <tt>false</tt> if it
+     * had already expired or been cancelled.
+     */
+    public boolean cancel(Entry<T> entry) {
+        if (entry.level < 0)
+            return false;
+
+        unlink(entry);
+        size--;
+
+        return true;
+    }
+
+    /**
+     * Remove and return the earliest timer if it expires no later than
+     * <i>now</i>. Timers are returned in order of time, and in the order
+     * they were scheduled for equal times.
+     *
+     * @param now the current time.
+     * @return the expired timer, or <tt>null</tt> if no timer is due.
+     */
+    public Entry<T> poll(long now) {
+        while (true) {
+            int digit = digit(current, 0);
+            long due = occupied[0] & (-1L << digit);
+
+            if (due != 0) {
+                int slot = Long.numberOfTrailingZeros(due);
+                long time = (current & ~(long) (slotsPerLevel - 1)) | slot;
+                if (time > now)
+                    return null;
+
+                current = time;
+                Entry<T> entry = heads[0][slot];
+                unlink(entry);
+                size--;
+
+                return entry;
+            }
+
+            // level 0 is empty for the rest of this round, move to the start
+            // of the next non-empty slot further up
+            int level = nextLevel();
+            if (level < 0)
+                return null;
+
+            int slot = nextSlot(level);
+            long start = slotStart(level, slot);
+            if (start > now)
+                return null;
+
+            current = start;
+            cascade(level, slot);
+        }
+    }
+
+    /**
+     * Return a lower bound on the time of the earliest timer. The bound is
+     * exact when that timer is due within the current run of 64 ticks.
+     *
+     * @return a time no later than any timer, or <tt>Long.MAX_VALUE</tt> if
+     * the wheel is empty.
+     */
+    public long nextTime() {
+        long due = occupied[0] & (-1L << digit(current, 0));
+        if (due != 0) {
+            return (current & ~(long) (slotsPerLevel - 1))
+                    | Long.numberOfTrailingZeros(due);
+        }
+
+        int level = nextLevel();
+        if (level < 0)
+            return Long.MAX_VALUE;
+
+        return slotStart(level, nextSlot(level));
+    }
+
+    /**
+     * Return the exact time of the earliest timer. Unlike <tt>nextTime()</tt>
+     * this may scan the timers of one slot.
+     *
+     * @return the time of the earliest timer, or <tt>Long.MAX_VALUE</tt> if
+     * the wheel is empty.
+     */
+    public long firstTime() {
+        if ((occupied[0] & (-1L << digit(current, 0))) != 0)
+            return nextTime();
+
+        int level = nextLevel();
+        if (level < 0)
+            return Long.MAX_VALUE;
+
+        long first = Long.MAX_VALUE;
+        for (Entry<T> entry = heads[level][nextSlot(level)]; entry != null;
+             entry = entry.next)
+            first = Math.min(first, entry.time);
+
+        return first;
+    }
+
+    /**
+     * Test whether the wheel holds no timers.
+     *
+     * @return <tt>true</tt> if there are no timers.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Return the number of timers in the wheel.
+     *
+     * @return the number of timers.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the timers in the wheel, in expiry order. This walks the whole
+     * wheel, and is meant for debugging output.
+     *
+     * @return a new list of the timers.
+     */
+    public List<Entry<T>> entries() {
+        List<Entry<T>> result = new ArrayList<Entry<T>>(size);
+
+        for (int level = 0; level < numLevels; level++) {
+            for (int slot = 0; slot < slotsPerLevel; slot++) {
+                for (Entry<T> e = heads[level][slot]; e != null; e = e.next)
+                    result.add(e);
+            }
+        }
+
+        result.sort(new Comparator<Entry<T>>() {
+            public int compare(Entry<T> a, Entry<T> b) {
+                if (a.time != b.time)
+                    return Long.compare(a.time, b.time);
+                return Long.compare(a.id, b.id);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * File a timer on the level and slot given by the current time, keeping
+     * each slot sorted by scheduling order.
+     */
+    private void insert(Entry<T> entry) {
+        long diff = entry.time ^ current;
+        int level = diff == 0 ? 0 : (63 - Long.numberOfLeadingZeros(diff)) / bitsPerLevel;
+        int slot = digit(entry.time, level);
+
+        entry.level = level;
+        entry.slot = slot;
+
+        // newly scheduled timers always go at the tail; cascaded ones may
+        // have to move in front of later timers with the same time
+        Entry<T> after = tails[level][slot];
+        while (after != null && after.id > entry.id)
+            after = after.prev;
+
+        entry.prev = after;
+        if (after == null) {
+            entry.next = heads[level][slot];
+            heads[level][slot] = entry;
+        } else {
+            entry.next = after.next;
+            after.next = entry;
+        }
+        if (entry.next == null)
+            tails[level][slot] = entry;
+        else
+            entry.next.prev = entry;
+
+        occupied[level] |= 1L << slot;
+    }
+
+    private void unlink(Entry<T> entry) {
+        int level = entry.level, slot = entry.slot;
+
+        if (entry.prev == null)
+            heads[level][slot] = entry.next;
+        else
+            entry.prev.next = entry.next;
+
+        if (entry.next == null)
+            tails[level][slot] = entry.prev;
+        else
+            entry.next.prev = entry.prev;
+
+        if (heads[level][slot] == null)
+            occupied[level] &= ~(1L << slot);
+
+        entry.prev = entry.next = null;
+        entry.level = -1;
+    }
+
+    /**
+     * Refile every timer in a slot relative to the current time, which has
+     * just reached the start of that slot.
+     */
+    private void cascade(int level, int slot) {
+        Entry<T> entry = heads[level][slot];
+
+        heads[level][slot] = tails[level][slot] = null;
+        occupied[level] &= ~(1L << slot);
+
+        while (entry != null) {
+            Entry<T> next = entry.next;
+            entry.prev = entry.next = null;
+            insert(entry);
+            entry = next;
+        }
+    }
+
+    /**
+     * Return the lowest level above 0 with a slot after the current time,
+     * or -1 if there is none.
+     */
+    private int nextLevel() {
+        for (int level = 1; level < numLevels; level++) {
+            if (later(level) != 0)
+                return level;
+        }
+        return -1;
+    }
+
+    private int nextSlot(int level) {
+        return Long.numberOfTrailingZeros(later(level));
+    }
+
+    /**
+     * Return the bitmap of non-empty slots on a level above 0 that start
+     * after the current time.
+     */
+    private long later(int level) {
+        int digit = digit(current, level);
+        if (digit == slotsPerLevel - 1)
+            return 0;
+
+        return occupied[level] & (-1L << (digit + 1));
+    }
+
+    /**
+     * Return the first time covered by a slot on a level above 0.
+     */
+    private long slotStart(int level, int slot) {
+        int shift = bitsPerLevel * (level + 1);
+        long upper = shift >= 64 ? 0 : (current >>> shift) << shift;
+
+        return upper | ((long) slot << (bitsPerLevel * level));
+    }
+
+    private static int digit(long time, int level) {
+        return (int) ((time >>> (bitsPerLevel * level)) & (slotsPerLevel - 1));
+    }
+
+    /**
+     * A timer in a <tt>TimingWheel</tt>.
+     *
+     * @param <T> the type of the value carried by the timer.
+     */
+    public static final class Entry<T> {
+        private Entry(long time, T value, long id) {
+            this.time = time;
+            this.value = value;
+            this.id = id;
+        }
+
+        /**
+         * Return the time at which this timer expires.
+         *
+         * @return the expiry time.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Return the value carried by this timer.
+         *
+         * @return the value.
+         */
+        public T getValue() {
+            return value;
+        }
+
+        private final long time;
+        private final T value;
+        private final long id;
+
+        private int level = -1, slot;
+        private Entry<T> prev, next;
+    }
+
+    private static final int bitsPerLevel = 6;
+    private static final int slotsPerLevel = 1 << bitsPerLevel;
+    private static final int numLevels = (64 + bitsPerLevel - 1) / bitsPerLevel;
+
+    /**
+     * The time of the last expired timer, or of the start of the last
+     * cascaded slot. Every timer in the wheel expires at or after it.
+     */
+    private long current = 0;
+    private int size = 0;
+    private long numScheduled = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Entry<T>[][] heads = new Entry[numLevels][slotsPerLevel];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Entry<T>[][] tails = new Entry[numLevels][slotsPerLevel];
+    private final long[] occupied = new long[numLevels];
+}
@@ -0,0 +1,194 @@
+package nachos.machine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 离线分析二进制执行轨迹。
+ * Reads a trace written by <tt>TraceWriter</tt> and summarizes it, without
+ * running the machine:
+ *
+ * <pre>
+ * java nachos.machine.TraceAnalyzer [-n <i>count</i>] [-r] <i>trace</i>
+ * </pre>
+ *
+ * <p>
+ * The summary gives the number of instructions, loads and stores, the
+ * exceptions by cause, the <i>count</i> (default 20) hottest PCs and the
+ * most frequent mnemonics. With <tt>-r</tt>, the virtual page reference
+ * string is printed instead: one line per reference, <tt>i</tt>,
+ * <tt>r</tt> or <tt>w</tt> followed by the page number, with consecutive
+ * references of the same kind to the same page collapsed into one.
+ */
+public final class TraceAnalyzer {
+    private TraceAnalyzer() {
+    }
+
+    /**
+     * Analyze the trace named on the command line.
+     *
+     * @param args the command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        int count = 20;
+        boolean references = false;
+        String name = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length)
+                count = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-r"))
+                references = true;
+            else
+                name = args[i];
+        }
+
+        if (name == null) {
+            System.err.println("usage: java nachos.machine.TraceAnalyzer "
+                    + "[-n count] [-r] trace");
+            System.exit(1);
+        }
+
+        TraceAnalyzer analyzer = new TraceAnalyzer();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(name), 1 << 16))) {
+            analyzer.read(in, references ? System.out : null);
+        }
+
+        if (!references)
+            analyzer.print(System.out, count);
+    }
+
+    /**
+     * Read a whole trace, counting its records and printing the reference
+     * string to <i>out</i> if it is not <tt>null</tt>.
+     */
+    private void read(DataInputStream in, PrintStream out) throws IOException {
+        if (readInt(in) != TraceWriter.magic)
+            throw new IOException("not a Nachos trace");
+        if (readInt(in) != TraceWriter.version)
+            throw new IOException("unsupported trace version");
+
+        char lastKind = 0;
+        int lastPage = -1;
+
+        while (true) {
+            int tag = in.read();
+            if (tag < 0)
+                break;
+
+            char kind;
+            int vaddr;
+
+            try {
+                switch (tag) {
+                    case TraceWriter.INSTRUCTION:
+                        vaddr = readInt(in);
+                        int instruction = readInt(in);
+                        numInstructions++;
+                        count(pcCounts, vaddr);
+                        count(mnemonicCounts, Processor.mnemonic(instruction));
+                        kind = 'i';
+                        break;
+                    case TraceWriter.LOAD:
+                    case TraceWriter.STORE:
+                        vaddr = readInt(in);
+                        in.readLong();
+                        in.readByte();
+                        if (tag == TraceWriter.LOAD) {
+                            numLoads++;
+                            kind = 'r';
+                        } else {
+                            numStores++;
+                            kind = 'w';
+                        }
+                        break;
+                    case TraceWriter.EXCEPTION:
+                        int cause = in.readUnsignedByte();
+                        readInt(in);
+                        exceptionCounts[cause]++;
+                        continue;
+                    default:
+                        throw new IOException("bad trace record " + tag);
+                }
+            } catch (EOFException e) {
+                // the machine stopped while the last buffer was being written
+                break;
+            }
+
+            if (out != null) {
+                int page = Processor.pageFromAddress(vaddr);
+                if (kind != lastKind || page != lastPage)
+                    out.println(kind + Integer.toString(page));
+                lastKind = kind;
+                lastPage = page;
+            }
+        }
+    }
+
+    private void print(PrintStream out, int count) {
+        out.println("instructions " + numInstructions + ", loads " + numLoads
+                + ", stores " + numStores);
+
+        out.println("\nexceptions:");
+        for (int i = 0; i < exceptionCounts.length; i++) {
+            if (exceptionCounts[i] > 0) {
+                out.println("\t" + Processor.exceptionNames[i] + "\t"
+                        + exceptionCounts[i]);
+            }
+        }
+
+        out.println("\nhottest PCs:");
+        for (Map.Entry<Integer, long[]> e : top(pcCounts, count)) {
+            out.println("\t0x" + Lib.toHexString(e.getKey()) + "\t"
+                    + e.getValue()[0]);
+        }
+
+        out.println("\nmost frequent instructions:");
+        for (Map.Entry<String, long[]> e : top(mnemonicCounts, count)) {
+            out.println("\t" + e.getKey() + "\t" + e.getValue()[0]);
+        }
+    }
+
+    private static <K> void count(Map<K, long[]> counts, K key) {
+        long[] n = counts.get(key);
+        if (n == null)
+            counts.put(key, n = new long[1]);
+        n[0]++;
+    }
+
+    private static <K> List<Map.Entry<K, long[]>> top(Map<K, long[]> counts,
+                                                      int count) {
+        List<Map.Entry<K, long[]>> entries =
+                new ArrayList<Map.Entry<K, long[]>>(counts.entrySet());
+        entries.sort(new Comparator<Map.Entry<K, long[]>>() {
+            public int compare(Map.Entry<K, long[]> a, Map.Entry<K, long[]> b) {
+                return Long.compare(b.getValue()[0], a.getValue()[0]);
+            }
+        });
+        return entries.subList(0, Math.min(count, entries.size()));
+    }
+
+    /**
+     * Read a little-endian int.
+     */
+    private static int readInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private long numInstructions = 0, numLoads = 0, numStores = 0;
+    private final long[] exceptionCounts =
+            new long[Processor.exceptionNames.length];
+    private final Map<Integer, long[]> pcCounts = new HashMap<Integer, long[]>();
+    private final Map<String, long[]> mnemonicCounts =
+            new HashMap<String, long[]>();
+}
@@ -0,0 +1,123 @@
+package nachos.machine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * 二进制执行轨迹。
+ * Streams a binary trace of user execution to a file, as an alternative to
+ * the per-instruction disassembly printed by the <tt>m</tt> and <tt>M</tt>
+ * debug flags. The processor writes one when <tt>Processor.trace</tt> names
+ * a file in the test directory; <tt>TraceAnalyzer</tt> reads it back.
+ *
+ * <p>
+ * A trace is a little-endian stream: the header <tt>magic</tt>,
+ * <tt>version</tt> (two ints), followed by records, each a tag byte and a
+ * fixed body:
+ * <ul>
+ * <li><tt>INSTRUCTION</tt>: the PC and the instruction word (two ints);
+ * <li><tt>LOAD</tt>, <tt>STORE</tt>: the virtual address (an int), the
+ * physical address (a long) and the access size (one byte);
+ * <li><tt>EXCEPTION</tt>: the cause (one byte) and the bad virtual address
+ * (an int, 0 if the exception has none).
+ * </ul>
+ * An instruction's loads, stores and exception follow its
+ * <tt>INSTRUCTION</tt> record. An instruction that faults on fetch is only
+ * recorded by its <tt>EXCEPTION</tt>.
+ */
+final class TraceWriter {
+    /**
+     * Start a trace on an open channel, writing the header.
+     *
+     * @param channel the channel to write to.
+     */
+    TraceWriter(FileChannel channel) {
+        this.channel = channel;
+
+        buffer.putInt(magic);
+        buffer.putInt(version);
+    }
+
+    /**
+     * Record an executed instruction.
+     *
+     * @param pc          the address of the instruction.
+     * @param instruction the instruction word.
+     */
+    void instruction(int pc, int instruction) {
+        reserve(9);
+        buffer.put(INSTRUCTION);
+        buffer.putInt(pc);
+        buffer.putInt(instruction);
+    }
+
+    /**
+     * Record a data load or store.
+     *
+     * @param store <tt>true</tt> for a store.
+     * @param vaddr the virtual address accessed.
+     * @param paddr the physical address it translated to.
+     * @param size  the number of bytes accessed.
+     */
+    void memory(boolean store, int vaddr, long paddr, int size) {
+        reserve(14);
+        buffer.put(store ? STORE : LOAD);
+        buffer.putInt(vaddr);
+        buffer.putLong(paddr);
+        buffer.put((byte) size);
+    }
+
+    /**
+     * Record a processor exception.
+     *
+     * @param cause    the exception cause.
+     * @param badVAddr the faulting virtual address, or 0.
+     */
+    void exception(int cause, int badVAddr) {
+        reserve(6);
+        buffer.put(EXCEPTION);
+        buffer.put((byte) cause);
+        buffer.putInt(badVAddr);
+    }
+
+    /**
+     * Write out any buffered records and close the file.
+     */
+    void close() {
+        flush();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void reserve(int bytes) {
+        if (buffer.remaining() < bytes)
+            flush();
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } catch (IOException e) {
+            Lib.assertNotReached("cannot write trace: " + e);
+        }
+        buffer.clear();
+    }
+
+    static final int magic = 0x4352544e;    // "NTRC" in file order
+    static final int version = 2;
+
+    static final byte INSTRUCTION = 1;
+    static final byte LOAD = 2;
+    static final byte STORE = 3;
+    static final byte EXCEPTION = 4;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer =
+            ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+}
@@ -49,6 +49,21 @@ public final class TranslationEntry {
         cow = entry.cow;
     }
 
+    /**
+     * Overwrite this translation entry with the contents of another.
+     *
+     * @param entry the translation entry to copy.
+     */
+    public void set(TranslationEntry entry) {
+        vpn = entry.vpn;
+        ppn = entry.ppn;
+        valid = entry.valid;
+        readOnly = entry.readOnly;
+        used = entry.used;
+        dirty = entry.dirty;
+        cow = entry.cow;
+    }
+
     /**
      * The virtual page number.
      * 虚拟页页号
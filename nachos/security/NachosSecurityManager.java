@@ -13,6 +13,10 @@ import java.awt.AWTPermission;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedExceptionAction;
 import java.security.PrivilegedActionException;
+import java.lang.reflect.ReflectPermission;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * Protects the environment from malicious Nachos code.
@@ -49,7 +53,13 @@ public class NachosSecurityManager extends SecurityManager {
 
         doPrivileged(new Runnable() {
             public void run() {
-                System.setSecurityManager(NachosSecurityManager.this);
+                try {
+                    System.setSecurityManager(NachosSecurityManager.this);
+                } catch (UnsupportedOperationException e) {
+                    // Java 18 及以后默认不允许安装安全管理器
+                    Lib.assertNotReached("Java 18 and later must be started"
+                            + " with -Djava.security.manager=allow");
+                }
             }
         });
     }
@@ -208,6 +218,13 @@ public class NachosSecurityManager extends SecurityManager {
             }
         }
 
+        // the virtual thread scheduler starts its carrier threads on demand,
+        // in whichever virtual thread blocks or is scheduled; constructing
+        // one checks only these permissions
+        if (TCB.usesVirtualThreads() && carrierPermission(perm)
+                && creatingCarrierThread())
+            return;
+
         // some are always allowed
         if (perm instanceof PropertyPermission) {
             // allowed to read properties
@@ -270,6 +287,50 @@ public class NachosSecurityManager extends SecurityManager {
         verifyPrivilege(perm);
     }
 
+    /**
+     * Test if the permission is one that the JDK checks while constructing a
+     * carrier thread of the virtual thread scheduler: the thread joins a
+     * thread group and inherits a context class loader, and a class it
+     * initializes on the way may use reflection.
+     */
+    private static boolean carrierPermission(Permission perm) {
+        String name = perm.getName();
+
+        if (perm instanceof RuntimePermission)
+            return name.equals("modifyThreadGroup")
+                    || name.equals("enableContextClassLoaderOverride");
+
+        return perm instanceof ReflectPermission
+                && name.equals("suppressAccessChecks");
+    }
+
+    /**
+     * Test if the permission is being checked to set up a carrier thread of
+     * the virtual thread scheduler. Only the innermost
+     * <tt>carrierSearchDepth</tt> frames are walked, without building a
+     * stack trace.
+     */
+    private static boolean creatingCarrierThread() {
+        return stackWalker.walk(carrierSearch);
+    }
+
+    private static final int carrierSearchDepth = 48;
+    private static final StackWalker stackWalker = StackWalker.getInstance();
+    private static final Function<Stream<StackWalker.StackFrame>, Boolean>
+            carrierSearch =
+            new Function<Stream<StackWalker.StackFrame>, Boolean>() {
+                public Boolean apply(Stream<StackWalker.StackFrame> frames) {
+                    Iterator<StackWalker.StackFrame> i =
+                            frames.limit(carrierSearchDepth).iterator();
+                    while (i.hasNext()) {
+                        if (i.next().getClassName()
+                                .equals("jdk.internal.misc.CarrierThread"))
+                            return true;
+                    }
+                    return false;
+                }
+            };
+
     /**
      * Called by the <tt>java.lang.Thread</tt> constructor to determine a
      * thread group for a child thread of the current thread. The caller must
@@ -167,6 +167,25 @@ public abstract class Privilege {
          *                     MIPS user code.
          */
         void tick(boolean inKernelMode);
+
+        /**
+         * Return the number of MIPS instructions that can be executed before
+         * the next pending interrupt becomes due, i.e. how many calls to
+         * <tt>tick(false)</tt> in a row would not invoke any handler.
+         *
+         * @return the number of user ticks that can be batched.
+         */
+        long userTicksUntilDue();
+
+        /**
+         * Advance the simulated time by the specified number of user
+         * instructions at once, without checking for due interrupts. Has the
+         * same effect as that many calls to <tt>tick(false)</tt>, as long as
+         * <i>count</i> is at most <tt>userTicksUntilDue()</tt>.
+         *
+         * @param count the number of user instructions executed.
+         */
+        void tickUser(long count);
     }
 
     /**
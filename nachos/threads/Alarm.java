@@ -2,11 +2,14 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.PriorityQueue;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timers are kept in a <tt>TimingWheel</tt>, so setting, cancelling
+ * and expiring a timer take constant time however many threads are asleep.
+ * Timers expire in the first timer interrupt at or after their time.
  */
 public class Alarm {
     /**
@@ -17,11 +20,13 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-        this.waitingThreadQueue = new PriorityQueue<>();
+        this.timers = new TimingWheel<Runnable>();
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() {
 //                System.out.println("here cur thread "+Thread.currentThread().getName());
-                handleWaitingThreads();
+                if (timerListener != null)
+                    timerListener.run();
+                expireTimers();
                 timerInterrupt();
             }
         });
@@ -41,19 +46,68 @@ public class Alarm {
         KThread.yield();
     }
 
-    private void handleWaitingThreads() {
-        while (!waitingThreadQueue.isEmpty()) {
-            long currentTime = Machine.timer().getTime();
-            if (waitingThreadQueue.peek().wakeTime > currentTime) break;
+    /**
+     * Set a handler to be called at the start of every timer interrupt, in
+     * the context of the interrupted thread and with interrupts disabled. The
+     * kernel uses this for sampling.
+     *
+     * @param listener the handler, or <tt>null</tt> for none.
+     */
+    public void setTimerListener(Runnable listener) {
+        timerListener = listener;
+    }
+
+    /**
+     * Run the handlers of the timers that are due, in order of time.
+     */
+    private void expireTimers() {
+        Lib.assertTrue(Machine.interrupt().disabled());
 
-            boolean intStatus = Machine.interrupt().disable();
+        long now = Machine.timer().getTime();
 
-            WaitingThread waitingThread = waitingThreadQueue.poll();
-            if (waitingThread != null) {
-                waitingThread.thread.ready();
-            }
-            Machine.interrupt().restore(intStatus);
-        }
+        TimingWheel.Entry<Runnable> timer;
+        while ((timer = timers.poll(now)) != null)
+            timer.getValue().run();
+    }
+
+    /**
+     * Set a timer that runs <i>handler</i> in the first timer interrupt at
+     * least <i>x</i> ticks from now. The handler is called with interrupts
+     * disabled, in the context of the interrupted thread, so it must not
+     * block; it would typically make a thread ready.
+     *
+     * @param x       the minimum number of clock ticks to wait.
+     * @param handler the handler to run.
+     * @return the timer, which can be passed to <tt>cancel()</tt>.
+     */
+    public TimingWheel.Entry<Runnable> schedule(long x, Runnable handler) {
+        Lib.assertTrue(handler != null);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        TimingWheel.Entry<Runnable> timer =
+                timers.schedule(Machine.timer().getTime() + Math.max(x, 0),
+                        handler);
+
+        Machine.interrupt().restore(intStatus);
+        return timer;
+    }
+
+    /**
+     * Cancel a timer set by <tt>schedule()</tt>, so that its handler is not
+     * run.
+     *
+     * @param timer the timer to cancel.
+     * @return <tt>true</tt> if the timer was cancelled, or <tt>false</tt> if
+     * its handler has already run or it was already cancelled.
+     */
+    public boolean cancel(TimingWheel.Entry<Runnable> timer) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean cancelled = timers.cancel(timer);
+
+        Machine.interrupt().restore(intStatus);
+        return cancelled;
     }
 
     /**
@@ -70,12 +124,15 @@ public class Alarm {
      * @see nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-
-        long wakeTime = Machine.timer().getTime() + x;
-        waitingThreadQueue.add(new WaitingThread(wakeTime, KThread.currentThread()));
-
         boolean intStatus = Machine.interrupt().disable();
 
+        final KThread thread = KThread.currentThread();
+        schedule(x, new Runnable() {
+            public void run() {
+                thread.ready();
+            }
+        });
+
         KThread.sleep();
 
         Machine.interrupt().restore(intStatus);
@@ -87,23 +144,6 @@ public class Alarm {
     }
 
 
-    private final PriorityQueue<WaitingThread> waitingThreadQueue;
-
-
-    private static class WaitingThread implements Comparable<WaitingThread> {
-        long wakeTime;
-        KThread thread;
-
-        public WaitingThread(long wakeTime, KThread thread) {
-            Lib.assertTrue(thread != null);
-            this.wakeTime = wakeTime;
-            this.thread = thread;
-        }
-
-        @Override
-        public int compareTo(WaitingThread o) {
-            return wakeTime - o.wakeTime < 0 ? -1 : 1;
-        }
-    }
-
+    private final TimingWheel<Runnable> timers;
+    private Runnable timerListener = null;
 }
@@ -5,6 +5,15 @@ public interface Condition {
 
     void sleep();
 
+    /**
+     * Like <tt>sleep()</tt>, but stop waiting once <i>timeout</i> ticks have
+     * passed without a <tt>wake()</tt>. The lock is reacquired either way.
+     *
+     * @param timeout the minimum number of clock ticks to wait.
+     * @return <tt>true</tt> if woken, <tt>false</tt> if the timeout ran out.
+     */
+    boolean sleepFor(long timeout);
+
     void wake();
 
     void wakeAll();
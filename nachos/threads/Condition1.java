@@ -89,6 +89,27 @@ public class Condition1 implements Condition {
         conditionLock.acquire();
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but give up after <i>timeout</i> ticks, using
+     * <tt>Semaphore.P(long)</tt>.
+     *
+     * @param timeout the minimum number of clock ticks to wait.
+     * @return <tt>true</tt> if woken, <tt>false</tt> if the timeout ran out.
+     */
+    public boolean sleepFor(long timeout) {
+        Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+        Semaphore waiter = new Semaphore(0);
+        waitQueue.add(waiter);
+
+        conditionLock.release();
+        waiter.P(timeout);
+        conditionLock.acquire();
+
+        // 超时之后、拿回锁之前，wake() 仍可能选中这个 waiter，这时算作被唤醒
+        return !waitQueue.remove(waiter);
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -47,6 +47,32 @@ public class Condition2 implements Condition {
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but give up after <i>timeout</i> ticks, using a
+     * timer of <tt>ThreadedKernel.alarm</tt>.
+     *
+     * @param timeout the minimum number of clock ticks to wait.
+     * @return <tt>true</tt> if woken, <tt>false</tt> if the timeout ran out.
+     */
+    public boolean sleepFor(long timeout) {
+        Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        waitQueue.add(KThread.currentThread());
+        Timeout handler = new Timeout(KThread.currentThread());
+        TimingWheel.Entry<Runnable> timer =
+                ThreadedKernel.alarm.schedule(timeout, handler);
+
+        conditionLock.release();
+        KThread.sleep();
+        ThreadedKernel.alarm.cancel(timer);
+        conditionLock.acquire();
+
+        Machine.interrupt().restore(intStatus);
+        return !handler.expired;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -74,6 +100,26 @@ public class Condition2 implements Condition {
         }
     }
 
+    /**
+     * The timer of a <tt>sleepFor()</tt>. If it expires while the thread is
+     * still waiting, it takes the thread out of the queue and makes it ready.
+     */
+    private class Timeout implements Runnable {
+        Timeout(KThread thread) {
+            this.thread = thread;
+        }
+
+        public void run() {
+            if (waitQueue.remove(thread)) {
+                expired = true;
+                thread.ready();
+            }
+        }
+
+        private final KThread thread;
+        private boolean expired = false;
+    }
+
     private final Lock conditionLock;
 
     private final LinkedList<KThread> waitQueue;
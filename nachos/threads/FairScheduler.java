@@ -0,0 +1,214 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * A scheduler that shares the processor in proportion to weights, by virtual
+ * runtime.
+ *
+ * <p>
+ * A thread's priority is its weight. While a thread runs it accrues virtual
+ * runtime: the ticks it runs, divided by its weight. Each queue keeps its
+ * waiting threads in a heap and dequeues the one with the least virtual
+ * runtime, so over time every runnable thread gets processor time in
+ * proportion to its weight. Threads with equal virtual runtime are dequeued in
+ * the order they started waiting.
+ *
+ * <p>
+ * The ticks a thread runs are counted from <tt>Stats.totalTicks</tt>, read
+ * through the timer, from the time it was last dequeued to the time another
+ * thread is dequeued or queued in its place, so time spent blocking in
+ * <tt>Alarm.waitUntil()</tt> is not charged either.
+ *
+ * <p>
+ * Each queue remembers the least virtual runtime it has dequeued. A new
+ * thread starts there, and a woken thread, one queued by another thread,
+ * starts no more than <tt>FairScheduler.wakeupCredit</tt> ticks of weight 1
+ * below it. Neither can save up processor time while it is not runnable,
+ * which bounds how long the others wait for it, and a woken thread is not
+ * stuck behind threads that kept running while it slept.
+ *
+ * <p>
+ * Weights are not transferred through locks or joins.
+ */
+public class FairScheduler extends ProportionalScheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+        wakeupCredit = Config.getInteger("FairScheduler.wakeupCredit", 500)
+                * runtimeScale;
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param transferPriority ignored; weights are never transferred.
+     * @return a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new FairQueue();
+    }
+
+    protected long getShare(KThread thread) {
+        return getThreadState(thread).weight;
+    }
+
+    protected long getEffectiveShare(KThread thread) {
+        return getShare(thread);
+    }
+
+    protected void setShare(KThread thread, long share) {
+        // 已经运行的时间按旧的权重计
+        charge(Machine.timer().getTime());
+        getThreadState(thread).weight = share;
+    }
+
+    /**
+     * The virtual runtime of one tick at weight 1.
+     */
+    private static final long runtimeScale = 1L << 16;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Charge the current thread for the ticks it has run since it was last
+     * dequeued or charged.
+     */
+    private void charge(long now) {
+        KThread current = KThread.currentThread();
+        if (current == null)
+            return;
+
+        ThreadState state = getThreadState(current);
+        state.vruntime += (now - state.lastCharge) * runtimeScale
+                / state.weight;
+        state.lastCharge = now;
+    }
+
+    private final long wakeupCredit;
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a heap ordered
+     * by virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            charge(Machine.timer().getTime());
+
+            ThreadState state = getThreadState(thread);
+            if (!state.started) {
+                state.started = true;
+                state.vruntime = Math.max(state.vruntime, minVruntime);
+            }
+            else if (thread != KThread.currentThread()) {
+                state.vruntime = Math.max(state.vruntime,
+                        minVruntime - wakeupCredit);
+            }
+
+            state.sequence = numQueued++;
+            waiting.add(state);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            long now = Machine.timer().getTime();
+            charge(now);
+
+            ThreadState state = waiting.poll();
+            if (state == null)
+                return null;
+
+            minVruntime = Math.max(minVruntime, state.vruntime);
+            state.lastCharge = now;
+            return state.thread;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            Lib.assertTrue(waiting.isEmpty());
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            return waiting.remove(getThreadState(thread));
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (ThreadState state : waiting) {
+                System.out.print(" " + state.thread + "("
+                        + state.vruntime / runtimeScale + ")");
+            }
+            System.out.println();
+        }
+
+        /**
+         * The least virtual runtime dequeued so far.
+         */
+        private long minVruntime = 0;
+
+        private PriorityQueue<ThreadState> waiting =
+                new PriorityQueue<ThreadState>(11, new Comparator<ThreadState>() {
+                    public int compare(ThreadState a, ThreadState b) {
+                        if (a.vruntime != b.vruntime)
+                            return a.vruntime < b.vruntime ? -1 : 1;
+
+                        return Long.compare(a.sequence, b.sequence);
+                    }
+                });
+        private long numQueued = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its weight and virtual runtime.
+     */
+    protected class ThreadState {
+        /**
+         * Allocate a new <tt>ThreadState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public ThreadState(KThread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The weight of the associated thread.
+         */
+        protected long weight = priorityDefault;
+        /**
+         * The virtual runtime of the associated thread, in ticks of weight 1
+         * times <tt>runtimeScale</tt>.
+         */
+        protected long vruntime = 0;
+
+        private long lastCharge = 0;
+        private long sequence;
+        private boolean started = false;
+    }
+}
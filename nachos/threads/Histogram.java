@@ -0,0 +1,128 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A histogram of non-negative values, such as times in ticks, with buckets of
+ * bounded relative width, in the manner of HdrHistogram.
+ *
+ * <p>
+ * Values below 16 have a bucket each. Above that, every power of two is split
+ * into 16 buckets, so a value and the bucket it is reported as differ by less
+ * than 1/16th. Recording a value takes a few instructions and allocates
+ * nothing unless the value is larger than any recorded before, so a histogram
+ * of small values stays small.
+ */
+public class Histogram {
+    /**
+     * Allocate a new, empty histogram.
+     */
+    public Histogram() {
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value the value, which must not be negative.
+     */
+    public void record(long value) {
+        Lib.assertTrue(value >= 0);
+
+        int index = indexOf(value);
+        if (index >= counts.length) {
+            long[] newCounts = new long[Math.max(index + 1, counts.length * 2)];
+            System.arraycopy(counts, 0, newCounts, 0, counts.length);
+            counts = newCounts;
+        }
+        counts[index]++;
+
+        if (count == 0 || value < min)
+            min = value;
+        if (value > max)
+            max = value;
+        count++;
+        total += value;
+    }
+
+    /**
+     * Return the number of values recorded.
+     *
+     * @return the number of values recorded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Return the sum of the values recorded.
+     *
+     * @return the sum of the values recorded.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Return the value below or at which the specified percentage of the
+     * recorded values lie, to the precision of the buckets.
+     *
+     * @param percentile the percentage, from 0 to 100.
+     * @return the largest value of the bucket holding that percentile, or 0
+     * if no values have been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int index = 0; index < counts.length; index++) {
+            seen += counts[index];
+            if (seen >= rank)
+                return Math.max(min, Math.min(max, highestValueOf(index)));
+        }
+        return max;
+    }
+
+    /**
+     * Return a one-line summary: the count, the mean and some percentiles.
+     *
+     * @return a summary of this histogram.
+     */
+    public String toString() {
+        if (count == 0)
+            return "count 0";
+
+        return "count " + count + ", mean " + total / count
+                + ", min " + min
+                + ", p50 " + getValueAtPercentile(50)
+                + ", p90 " + getValueAtPercentile(90)
+                + ", p99 " + getValueAtPercentile(99)
+                + ", p99.9 " + getValueAtPercentile(99.9)
+                + ", max " + max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < subBuckets)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - subBucketBits;
+        return subBuckets * (shift + 1) + (int) (value >> shift) - subBuckets;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < subBuckets)
+            return index;
+
+        int shift = index / subBuckets - 1;
+        long lowest = (long) (index % subBuckets + subBuckets) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private static final int subBucketBits = 4;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    private long[] counts = new long[subBuckets];
+    private long count = 0, total = 0, min = 0, max = 0;
+}
@@ -2,6 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -148,8 +151,7 @@ public class KThread {
         Lib.assertTrue(status == statusNew);
         Lib.assertTrue(target != null);
 
-        Lib.debug(dbgThread,
-                "Forking thread: " + toString() + " Runnable: " + target);
+        Debug.event(dbgThread, "Forking thread: %s Runnable: %s", this, target);
 
         // todo 关中断
         boolean intStatus = Machine.interrupt().disable();
@@ -175,7 +177,7 @@ public class KThread {
     }
 
     private void begin() {
-        Lib.debug(dbgThread, "Beginning thread: " + toString());
+        Debug.event(dbgThread, "Beginning thread: %s", this);
 
         Lib.assertTrue(this == currentThread);
 
@@ -196,7 +198,7 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
-        Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+        Debug.event(dbgThread, "Finishing thread: %s", currentThread);
 
         Machine.interrupt().disable();
 
@@ -237,7 +239,7 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-        Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+        Debug.event(dbgThread, "Yielding thread: %s", currentThread);
 
         Lib.assertTrue(currentThread.status == statusRunning);
 
@@ -264,14 +266,18 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-        Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+        Debug.event(dbgThread, "Sleeping thread: %s", currentThread);
 
         // todo 当前必屏蔽了中断
         Lib.assertTrue(Machine.interrupt().disabled());
 
-        if (currentThread.status != statusFinished)
+        if (currentThread.status != statusFinished) {
             currentThread.status = statusBlocked;
 
+            if (allHistograms != null && currentThread != idleThread)
+                currentThread.blockTime = Machine.timer().getTime();
+        }
+
         // 放弃 CPU，因为当前线程要么已经完成，要么被阻塞。
         runNextThread();
     }
@@ -281,13 +287,16 @@ public class KThread {
      * ready queue.
      */
     public void ready() {
-        Lib.debug(dbgThread, "Ready thread: " + toString());
+        Debug.event(dbgThread, "Ready thread: %s", this);
         // todo 当前必屏蔽了中断
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(status != statusReady);
 
         status = statusReady;
         if (this != idleThread) {
+            if (allHistograms != null)
+                readied(Machine.timer().getTime());
+
             // 将此线程加入 ready 队列，等待调度
             readyQueue.waitForAccess(this);
         }
@@ -302,7 +311,7 @@ public class KThread {
      * thread.
      */
     public void join() {
-        Lib.debug(dbgThread, "Joining to thread: " + toString());
+        Debug.event(dbgThread, "Joining to thread: %s", this);
 
         Lib.assertTrue(this != currentThread);
         // 开关中断的处理逻辑类似于 yield
@@ -329,10 +338,36 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * With <tt>ThreadedKernel.idleFastForward</tt>, the idle thread skips the
+     * simulated clock ahead to the next pending interrupt instead of spinning
+     * one kernel tick at a time. Simulated times are unchanged.
+     *
+     * <p>
+     * With <tt>ThreadedKernel.histograms</tt>, every thread except the idle
+     * thread records how long it waits on the ready queue before it runs, how
+     * long it runs before it gives up the processor, and how long it blocks,
+     * in simulated ticks. Histograms of all threads and of the threads that
+     * ran longest are printed when Nachos terminates.
      */
     private static void createIdleThread() {
         Lib.assertTrue(idleThread == null);
 
+        idleFastForward =
+                Config.getBoolean("ThreadedKernel.idleFastForward", false);
+
+        if (Config.getBoolean("ThreadedKernel.histograms", false)) {
+            allHistograms = new SchedulingHistograms();
+            histogramThreads = new ArrayList<KThread>();
+
+            Machine.addTerminationHandler(new Runnable() {
+                public void run() {
+                    printHistograms();
+                }
+            });
+        }
+
         idleThread = new KThread(new Runnable() {
             public void run() {
                 while (true) KThread.yield();
@@ -354,8 +389,13 @@ public class KThread {
      */
     private static void runNextThread() {
         KThread nextThread = readyQueue.nextThread();
-        if (nextThread == null)
+        if (nextThread == null) {
+            // 空闲线程空转：直接跳到下一个中断，而不是每次只前进一个 KernelTick
+            if (idleFastForward && currentThread == idleThread)
+                Machine.interrupt().idle();
+
             nextThread = idleThread;
+        }
 
         // run() 仅在此处调用
         nextThread.run();
@@ -385,8 +425,11 @@ public class KThread {
 
         currentThread.saveState();
 
-        Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-                + " to: " + toString());
+        Debug.event(dbgThread, "Switching from: %s to: %s", currentThread,
+                this);
+
+        if (allHistograms != null)
+            switched(currentThread, this, Machine.timer().getTime());
 
         currentThread = this; // 当前 thread 成为 currentThread
 
@@ -401,7 +444,7 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-        Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+        Debug.event(dbgThread, "Running thread: %s", currentThread);
         // todo 当前必屏蔽了中断
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(this == currentThread);
@@ -429,6 +472,86 @@ public class KThread {
         Lib.assertTrue(this == currentThread);
     }
 
+    /**
+     * This thread is being added to the ready queue at <i>now</i>. Record
+     * how long it was blocked, if it was.
+     */
+    private void readied(long now) {
+        if (blockTime >= 0) {
+            histograms().blocked.record(now - blockTime);
+            allHistograms.blocked.record(now - blockTime);
+            blockTime = -1;
+        }
+        readyTime = now;
+    }
+
+    /**
+     * The processor is being switched from <i>from</i> to <i>to</i> at
+     * <i>now</i>. Record how long the first ran and how long the second
+     * waited to run.
+     */
+    private static void switched(KThread from, KThread to, long now) {
+        if (from != idleThread) {
+            from.histograms().running.record(now - from.runTime);
+            allHistograms.running.record(now - from.runTime);
+        }
+        if (to != idleThread) {
+            to.histograms().waiting.record(now - to.readyTime);
+            allHistograms.waiting.record(now - to.readyTime);
+        }
+        to.runTime = now;
+    }
+
+    private SchedulingHistograms histograms() {
+        if (histograms == null) {
+            histograms = new SchedulingHistograms();
+            histogramThreads.add(this);
+        }
+        return histograms;
+    }
+
+    /**
+     * Print the histograms of all threads, then of the threads that ran the
+     * longest.
+     */
+    private static void printHistograms() {
+        System.out.println("\nScheduling (" + ThreadedKernel.scheduler
+                .getClass().getName() + "), in ticks:");
+        allHistograms.print();
+
+        List<KThread> threads = new ArrayList<KThread>(histogramThreads);
+        Collections.sort(threads, new Comparator<KThread>() {
+            public int compare(KThread a, KThread b) {
+                return Long.compare(b.histograms.running.getTotal(),
+                        a.histograms.running.getTotal());
+            }
+        });
+
+        int shown = Math.min(threads.size(), numHistogramThreads);
+        for (KThread thread : threads.subList(0, shown)) {
+            System.out.println(thread + ":");
+            thread.histograms.print();
+        }
+        if (threads.size() > shown)
+            System.out.println("(" + (threads.size() - shown)
+                    + " more threads)");
+    }
+
+    /**
+     * How long a thread, or all threads, waited to run, ran, and blocked.
+     */
+    private static class SchedulingHistograms {
+        void print() {
+            System.out.println("    wait to run: " + waiting);
+            System.out.println("    run length:  " + running);
+            System.out.println("    block time:  " + blocked);
+        }
+
+        final Histogram waiting = new Histogram();
+        final Histogram running = new Histogram();
+        final Histogram blocked = new Histogram();
+    }
+
     private static class PingTest implements Runnable {
         PingTest(int which) {
             this.which = which;
@@ -720,6 +843,19 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    private static boolean idleFastForward = false;
+
+    /**
+     * The times, in ticks, this thread was last readied, started running and
+     * blocked, and its histograms, if <tt>ThreadedKernel.histograms</tt> is
+     * set. <tt>blockTime</tt> is -1 unless the thread is blocked.
+     */
+    private long readyTime = 0, runTime = 0, blockTime = -1;
+    private SchedulingHistograms histograms = null;
+
+    private static SchedulingHistograms allHistograms = null;
+    private static List<KThread> histogramThreads = null;
+    private static final int numHistogramThreads = 10;
 
     // join 的实现 from jsy
     ThreadQueue waitMeFinishThreadsQueue = null;
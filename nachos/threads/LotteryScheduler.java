@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,8 +21,13 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * a draw, a change in a waiting thread's tickets and the resulting change of
+ * the queue's donation all take O(log n) time.
  */
-public class LotteryScheduler extends PriorityScheduler {
+public class LotteryScheduler extends ProportionalScheduler {
     /**
      * Allocate a new lottery scheduler.
      */
@@ -43,6 +44,337 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
         // implement me
-        return null;
+        return new LotteryQueue(transferPriority);
+    }
+
+    protected long getShare(KThread thread) {
+        return getLotteryState(thread).tickets;
+    }
+
+    protected long getEffectiveShare(KThread thread) {
+        return getLotteryState(thread).effectiveTickets;
+    }
+
+    protected void setShare(KThread thread, long share) {
+        getLotteryState(thread).setTickets(share);
+    }
+
+    /**
+     * Compare the lottery and stride schedulers with the round-robin and
+     * priority schedulers on a ready queue of <i>numThreads</i> threads, given
+     * weights 1 to 4 in turn, used as both priority and tickets. Each round
+     * dequeues the next thread and queues it again; no thread actually runs.
+     * For each scheduler, prints the time per round, the share of rounds won
+     * by each weight, and Jain's fairness index of rounds won per unit of
+     * weight (1 when every thread gets exactly its weight's share).
+     *
+     * @param numThreads the number of ready threads.
+     * @param rounds     the number of rounds.
+     */
+    public static void benchmark(int numThreads, int rounds) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        benchmark("RoundRobinScheduler", new RoundRobinScheduler(),
+                numThreads, rounds);
+        benchmark("PriorityScheduler", new PriorityScheduler(), numThreads,
+                rounds);
+        benchmark("LotteryScheduler", new LotteryScheduler(), numThreads,
+                rounds);
+        benchmark("StrideScheduler", new StrideScheduler(), numThreads,
+                rounds);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    private static void benchmark(String name, Scheduler scheduler,
+                                  int numThreads, int rounds) {
+        final int numWeights = 4;
+
+        ThreadQueue queue = scheduler.newThreadQueue(false);
+
+        KThread[] threads = new KThread[numThreads];
+        long[] wins = new long[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new KThread();
+            threads[i].setName(Integer.toString(i));
+            scheduler.setPriority(threads[i], 1 + i % numWeights);
+            queue.waitForAccess(threads[i]);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            KThread thread = queue.nextThread();
+            wins[Integer.parseInt(thread.getName())]++;
+            queue.waitForAccess(thread);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long[] weightWins = new long[numWeights];
+        double sum = 0, sumOfSquares = 0;
+        for (int i = 0; i < numThreads; i++) {
+            weightWins[i % numWeights] += wins[i];
+
+            double share = (double) wins[i] / (1 + i % numWeights);
+            sum += share;
+            sumOfSquares += share * share;
+        }
+
+        StringBuilder line = new StringBuilder(name + ": " + numThreads
+                + " threads, " + rounds + " rounds: " + elapsed / rounds
+                + " ns/round, share by weight");
+        for (int w = 0; w < numWeights; w++) {
+            line.append(" ").append(w + 1).append(":")
+                    .append(weightWins[w] * 1000 / rounds / 10.0).append("%");
+        }
+        line.append(", fairness ")
+                .append(Math.round(sum * sum / numThreads / sumOfSquares * 1000)
+                        / 1000.0);
+        System.out.println(line);
+    }
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new LotteryState(thread);
+
+        return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Every waiting thread has a slot in a Fenwick tree of effective tickets.
+     * A draw picks a random ticket and descends the tree to the slot holding
+     * it. Slots of threads that leave are reused, and the tree doubles when
+     * it is full.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+        LotteryQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            LotteryState state = getLotteryState(thread);
+            Lib.assertTrue(state.waitQueue == null);
+
+            if (numFree == 0)
+                grow();
+
+            state.waitQueue = this;
+            state.slot = free[--numFree];
+            slots[state.slot] = state;
+
+            changeTickets(state, state.effectiveTickets);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            Lib.assertTrue(total == 0 && holder == null);
+
+            holder = getLotteryState(thread);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            // 旧的持有者失去这个队列捐赠的全部彩票
+            if (holder != null && transferPriority)
+                holder.changeEffectiveTickets(-total);
+            holder = null;
+
+            if (total == 0)
+                return null;
+
+            long ticket = total <= Integer.MAX_VALUE
+                    ? Lib.random((int) total) : (long) (Lib.random() * total);
+            LotteryState state = slots[find(ticket)];
+
+            add(state.slot, -state.effectiveTickets);
+            total -= state.effectiveTickets;
+            slots[state.slot] = null;
+            free[numFree++] = state.slot;
+            state.waitQueue = null;
+
+            // 新的持有者得到剩下的等待线程的彩票
+            holder = state;
+            if (transferPriority)
+                holder.changeEffectiveTickets(total);
+
+            return state.thread;
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            LotteryState state = getLotteryState(thread);
+            if (state.waitQueue != this)
+                return false;
+
+            changeTickets(state, -state.effectiveTickets);
+            slots[state.slot] = null;
+            free[numFree++] = state.slot;
+            state.waitQueue = null;
+
+            return true;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (LotteryState state : slots) {
+                if (state != null)
+                    System.out.print(" " + state.thread + "("
+                            + state.effectiveTickets + ")");
+            }
+            System.out.println();
+        }
+
+        /**
+         * Change the tickets of a waiting thread by <i>delta</i>, and pass
+         * the change on to the holder.
+         */
+        private void changeTickets(LotteryState state, long delta) {
+            add(state.slot, delta);
+            total += delta;
+
+            if (transferPriority && holder != null)
+                holder.changeEffectiveTickets(delta);
+        }
+
+        private void add(int slot, long delta) {
+            for (int i = slot + 1; i < tree.length; i += i & -i)
+                tree[i] += delta;
+        }
+
+        /**
+         * Return the slot holding the specified ticket: the first slot whose
+         * prefix sum of tickets is greater than it.
+         */
+        private int find(long ticket) {
+            int position = 0;
+            for (int step = Integer.highestOneBit(tree.length - 1); step > 0;
+                 step >>= 1) {
+                if (position + step < tree.length
+                        && tree[position + step] <= ticket) {
+                    position += step;
+                    ticket -= tree[position];
+                }
+            }
+            return position;
+        }
+
+        /**
+         * Double the number of slots and rebuild the tree.
+         */
+        private void grow() {
+            int capacity = slots.length == 0 ? 4 : slots.length * 2;
+
+            LotteryState[] newSlots = new LotteryState[capacity];
+            System.arraycopy(slots, 0, newSlots, 0, slots.length);
+
+            free = new int[capacity];
+            for (int slot = capacity - 1; slot >= slots.length; slot--)
+                free[numFree++] = slot;
+
+            tree = new long[capacity + 1];
+            for (int i = 1; i <= capacity; i++) {
+                if (newSlots[i - 1] != null)
+                    tree[i] += newSlots[i - 1].effectiveTickets;
+
+                int parent = i + (i & -i);
+                if (parent <= capacity)
+                    tree[parent] += tree[i];
+            }
+
+            slots = newSlots;
+        }
+
+        /**
+         * <tt>true</tt> if this queue should transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        public boolean transferPriority;
+
+        private LotteryState holder = null;
+
+        /**
+         * The total effective tickets of the waiting threads.
+         */
+        private long total = 0;
+
+        private LotteryState[] slots = new LotteryState[0];
+        private long[] tree = new long[1];
+        private int[] free = new int[0];
+        private int numFree = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, its effective tickets,
+     * which add the tickets of every thread waiting in a queue it holds, and
+     * the queue it is waiting in, if any.
+     */
+    protected class LotteryState {
+        /**
+         * Allocate a new <tt>LotteryState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public LotteryState(KThread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Set the tickets of the associated thread.
+         *
+         * @param tickets the new number of tickets.
+         */
+        public void setTickets(long tickets) {
+            long delta = tickets - this.tickets;
+            this.tickets = tickets;
+
+            changeEffectiveTickets(delta);
+        }
+
+        /**
+         * Change the effective tickets by <i>delta</i>, and pass the change
+         * along the chain of queues this thread waits in and their holders.
+         */
+        private void changeEffectiveTickets(long delta) {
+            if (delta == 0)
+                return;
+
+            effectiveTickets += delta;
+
+            if (waitQueue != null)
+                waitQueue.changeTickets(this, delta);
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The tickets of the associated thread.
+         */
+        protected long tickets = priorityDefault;
+        /**
+         * The tickets plus those donated by the waiters of held queues.
+         */
+        protected long effectiveTickets = priorityDefault;
+
+        /**
+         * The queue this thread is waiting in, and its slot there.
+         */
+        private LotteryQueue waitQueue = null;
+        private int slot;
     }
 }
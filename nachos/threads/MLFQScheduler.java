@@ -0,0 +1,294 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every thread is at one of <tt>MLFQScheduler.levels</tt> levels, level 0
+ * being the most important. Each queue dequeues the waiting threads of the
+ * lowest level first, and threads of the same level in the order they started
+ * waiting.
+ *
+ * <p>
+ * A thread's level follows how it uses the processor:
+ *
+ * <ul>
+ * <li>Whenever the current thread gives up the processor by waiting in a
+ * queue, whether it yields or blocks, the ticks since it was last dequeued
+ * are added to its allotment at its level. Once it has used
+ * <tt>MLFQScheduler.quantum</tt> ticks at level 0, twice that at level 1 and
+ * so on, it moves down a level. A thread cannot keep its level by yielding
+ * just before the timer would preempt it.
+ * <li>When a blocked thread is woken, that is, added to a queue by another
+ * thread, it moves up a level and starts a new allotment. Threads waiting on
+ * a <tt>Semaphore</tt>, <tt>Lock</tt>, the console or the <tt>Alarm</tt> rise
+ * to the top, while threads preempted by the timer sink.
+ * <li>Every <tt>MLFQScheduler.boostInterval</tt> ticks every thread moves
+ * back to level 0, so that threads at the bottom cannot starve.
+ * </ul>
+ *
+ * <p>
+ * Levels are not transferred through locks or joins.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler, configured by <tt>nachos.conf</tt>.
+     */
+    public MLFQScheduler() {
+        levels = Config.getInteger("MLFQScheduler.levels", 4);
+        quantum = Config.getInteger("MLFQScheduler.quantum", 1000);
+        boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+                100000);
+
+        Lib.assertTrue(levels >= 1 && levels <= 32,
+                "MLFQScheduler.levels must be between 1 and 32");
+        Lib.assertTrue(quantum > 0 && boostInterval > 0);
+
+        nextBoost = boostInterval;
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param transferPriority ignored; levels are never transferred.
+     * @return a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new LevelQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread: <tt>levels - 1</tt> at
+     * level 0, down to 0 at the lowest level.
+     *
+     * @param thread the thread whose priority to return.
+     * @return the priority of the specified thread.
+     */
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return levels - 1 - getThreadState(thread).level();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        return getPriority(thread);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Start a new boost period if the current one is over.
+     */
+    private void checkBoost(long now) {
+        if (now >= nextBoost) {
+            boostEpoch++;
+            nextBoost = now + boostInterval;
+        }
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level, and a bitmap of
+     * the non-empty ones.
+     */
+    protected class LevelQueue extends ThreadQueue {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        LevelQueue() {
+            lists = new ArrayDeque[levels];
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            long now = Machine.timer().getTime();
+            checkBoost(now);
+            boost();
+
+            ThreadState state = getThreadState(thread);
+            if (thread == KThread.currentThread())
+                state.charge(now);
+            else
+                state.wake();
+
+            int level = state.level();
+            if (lists[level] == null)
+                lists[level] = new ArrayDeque<ThreadState>();
+
+            lists[level].addLast(state);
+            occupied |= 1 << level;
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            long now = Machine.timer().getTime();
+            checkBoost(now);
+            boost();
+
+            if (occupied == 0)
+                return null;
+
+            int level = Integer.numberOfTrailingZeros(occupied);
+            ThreadState state = lists[level].pollFirst();
+            if (lists[level].isEmpty())
+                occupied &= ~(1 << level);
+
+            state.runStart = now;
+            return state.thread;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            Lib.assertTrue(occupied == 0);
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            boost();
+
+            int level = getThreadState(thread).level();
+            if (lists[level] == null
+                    || !lists[level].remove(getThreadState(thread)))
+                return false;
+
+            if (lists[level].isEmpty())
+                occupied &= ~(1 << level);
+            return true;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int level = 0; level < levels; level++) {
+                if (lists[level] == null)
+                    continue;
+
+                for (ThreadState state : lists[level])
+                    System.out.print(" " + state.thread + "(" + level + ")");
+            }
+            System.out.println();
+        }
+
+        /**
+         * After a boost, move every waiting thread to level 0, keeping them
+         * in level order.
+         */
+        private void boost() {
+            if (epoch == boostEpoch)
+                return;
+
+            epoch = boostEpoch;
+            if ((occupied & ~1) == 0)
+                return;
+
+            if (lists[0] == null)
+                lists[0] = new ArrayDeque<ThreadState>();
+
+            for (int level = 1; level < levels; level++) {
+                if ((occupied & (1 << level)) != 0) {
+                    lists[0].addAll(lists[level]);
+                    lists[level].clear();
+                }
+            }
+            occupied = 1;
+        }
+
+        private ArrayDeque<ThreadState>[] lists;
+        private int occupied = 0;
+        private long epoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of its
+     * allotment there it has used.
+     */
+    protected class ThreadState {
+        /**
+         * Allocate a new <tt>ThreadState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public ThreadState(KThread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Return the level of the associated thread, which is 0 if there has
+         * been a boost since it last changed.
+         *
+         * @return the level of the associated thread.
+         */
+        public int level() {
+            if (epoch != boostEpoch) {
+                epoch = boostEpoch;
+                level = 0;
+                used = 0;
+            }
+            return level;
+        }
+
+        /**
+         * The associated thread is giving up the processor. Add the ticks
+         * since it was dequeued to its allotment, and move it down a level if
+         * the allotment is used up.
+         */
+        private void charge(long now) {
+            int level = level();
+
+            used += now - runStart;
+            if (used >= quantum << level) {
+                if (level < levels - 1)
+                    this.level = level + 1;
+                used = 0;
+            }
+        }
+
+        /**
+         * The associated thread has been woken. Move it up a level.
+         */
+        private void wake() {
+            int level = level();
+
+            if (level > 0)
+                this.level = level - 1;
+            used = 0;
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+
+        private int level = 0;
+        private long used = 0;
+        private long runStart = 0;
+        private long epoch = boostEpoch;
+    }
+
+    private final int levels;
+    private final long quantum;
+    private final long boostInterval;
+
+    /**
+     * Incremented by every boost. Threads and queues that have not seen the
+     * latest boost apply it lazily.
+     */
+    private long boostEpoch = 0;
+    private long nextBoost;
+}
@@ -3,6 +3,7 @@ package nachos.threads;
 import nachos.machine.*;
 
 import java.util.Comparator;
+import java.util.Random;
 import java.util.TreeSet;
 
 /**
@@ -24,12 +25,36 @@ import java.util.TreeSet;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * By default the waiting threads of each queue are kept in one FIFO list per
+ * priority, with a bitmap of the non-empty ones, so that adding a thread,
+ * dequeuing the next one and changing a waiting thread's priority take
+ * constant time. Setting <tt>PriorityScheduler.queue</tt> to <tt>tree</tt>
+ * keeps them in a <tt>TreeSet</tt> instead, which takes logarithmic time.
+ * The two only differ in how they order threads of equal priority whose
+ * priority changed while waiting.
  */
 public class PriorityScheduler extends Scheduler {
     /**
      * Allocate a new priority scheduler.
      */
     public PriorityScheduler() {
+        String queue = Config.getString("PriorityScheduler.queue", "bitmap");
+        Lib.assertTrue(queue.equals("bitmap") || queue.equals("tree"),
+                "unknown PriorityScheduler.queue " + queue);
+
+        bitmapQueues = queue.equals("bitmap");
+    }
+
+    /**
+     * Allocate a new priority scheduler with the specified kind of queue.
+     *
+     * @param bitmapQueues <tt>true</tt> for per-priority lists, <tt>false</tt>
+     *                     for a <tt>TreeSet</tt>.
+     */
+    PriorityScheduler(boolean bitmapQueues) {
+        this.bitmapQueues = bitmapQueues;
     }
 
     /**
@@ -94,6 +119,55 @@ public class PriorityScheduler extends Scheduler {
         return true;
     }
 
+    /**
+     * Compare the two kinds of queue with many waiting threads, and print
+     * the time per operation of each. A ready queue holds
+     * <i>numThreads</i> threads of random priorities; each round dequeues
+     * the next thread, queues it again, and changes the priority of a
+     * random waiting thread. No thread actually runs.
+     *
+     * @param numThreads the number of waiting threads.
+     * @param rounds     the number of rounds.
+     */
+    public static void benchmark(int numThreads, int rounds) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        StringBuilder line = new StringBuilder("PriorityScheduler: "
+                + numThreads + " threads, " + rounds + " rounds:");
+        for (boolean bitmap : new boolean[]{false, true}) {
+            long elapsed = benchmark(new PriorityScheduler(bitmap),
+                    numThreads, rounds);
+            line.append(bitmap ? ", bitmap " : " tree ")
+                    .append(elapsed / rounds).append(" ns/round");
+        }
+        System.out.println(line);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    private static long benchmark(PriorityScheduler scheduler, int numThreads,
+                                  int rounds) {
+        Random random = new Random(0);
+        ThreadQueue queue = scheduler.newThreadQueue(false);
+
+        KThread[] threads = new KThread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new KThread();
+            scheduler.setPriority(threads[i], random.nextInt(priorityMaximum + 1));
+            queue.waitForAccess(threads[i]);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            KThread thread = queue.nextThread();
+            queue.waitForAccess(thread);
+
+            scheduler.setPriority(threads[random.nextInt(numThreads)],
+                    random.nextInt(priorityMaximum + 1));
+        }
+        return System.nanoTime() - start;
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -107,6 +181,12 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;
 
+    /**
+     * <tt>true</tt> if queues keep their waiting threads in per-priority
+     * lists, <tt>false</tt> for a <tt>TreeSet</tt>.
+     */
+    private final boolean bitmapQueues;
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -130,6 +210,8 @@ public class PriorityScheduler extends Scheduler {
 
         PriorityQueue(boolean transferPriority) {
             this.transferPriority = transferPriority;
+            this.waitingSet = bitmapQueues ? new BitmapWaitingSet()
+                    : new TreeWaitingSet();
         }
 
         public void waitForAccess(KThread thread) {
@@ -146,30 +228,65 @@ public class PriorityScheduler extends Scheduler {
 //            System.out.println("执行断言: "+resourceHolder.thread.getName());
             Lib.assertTrue(resourceHolder == null);
             resourceHolder = threadState;
+            if (transferPriority)
+                threadState.hold(this);
         }
 
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
             // implement me
-            if (waitingSet.isEmpty()) {
-                resourceHolder = null; // todo
-                return null;
-            }
+
+            // 旧的持有者只失去这个队列的捐赠，其他持有的队列的捐赠保留
+            if (resourceHolder != null && transferPriority)
+                resourceHolder.release(this);
 
             ThreadState threadState = waitingSet.pollFirst();
-            KThread thread = null;
-            if (threadState != null) {
-                Lib.assertTrue(threadState.waitQueue != null);
-                if (this.resourceHolder != null && threadState.waitQueue.transferPriority) {
-                    this.resourceHolder.resetOriginalPriority(); // 有效优先级复位
-                }
-                threadState.waitQueue = null; // todo 出队时置空, 表明此线程不再等待某个资源
-                thread = threadState.thread;
-            }
+            donation = waitingSet.isEmpty() ? noDonation
+                    : waitingSet.first().getEffectivePriority();
 
             // 不论threadState为null还是不为null,更新 resourceHolder
             this.resourceHolder = threadState;
-            return thread;
+            if (threadState == null)
+                return null;
+
+            Lib.assertTrue(threadState.waitQueue == this);
+            threadState.waitQueue = null; // todo 出队时置空, 表明此线程不再等待某个资源
+            if (transferPriority)
+                threadState.hold(this);
+
+            return threadState.thread;
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState threadState = getThreadState(thread);
+            if (threadState.waitQueue != this)
+                return false;
+
+            waitingSet.remove(threadState);
+            threadState.waitQueue = null;
+            updateDonation();
+
+            return true;
+        }
+
+        /**
+         * Recompute the priority this queue donates to its holder, after its
+         * first waiting thread or that thread's priority changed, and pass a
+         * change on to the holder.
+         */
+        private void updateDonation() {
+            int newDonation = waitingSet.isEmpty() ? noDonation
+                    : waitingSet.first().getEffectivePriority();
+            if (newDonation == donation)
+                return;
+
+            int oldDonation = donation;
+            donation = newDonation;
+
+            if (transferPriority && resourceHolder != null)
+                resourceHolder.changeDonation(oldDonation, newDonation);
         }
 
         /**
@@ -197,7 +314,75 @@ public class PriorityScheduler extends Scheduler {
          */
         public boolean transferPriority;
 
-        protected final TreeSet<ThreadState> waitingSet = new TreeSet<>(new Comparator<ThreadState>() {
+        protected final WaitingSet waitingSet;
+
+        /**
+         * The effective priority of the first waiting thread, which this
+         * queue donates to its holder if <tt>transferPriority</tt> is set, or
+         * <tt>noDonation</tt> if no thread is waiting.
+         */
+        private int donation = noDonation;
+    }
+
+    private static final int noDonation = -1;
+
+    /**
+     * 等待线程的集合。
+     * The threads waiting in a <tt>PriorityQueue</tt>, ordered by effective
+     * priority, highest first, then roughly by the time they started waiting.
+     * A thread's effective priority must not change while it is in the set;
+     * remove it first and add it again.
+     */
+    protected interface WaitingSet {
+        void add(ThreadState threadState);
+
+        void remove(ThreadState threadState);
+
+        boolean contains(ThreadState threadState);
+
+        boolean isEmpty();
+
+        /**
+         * Return the first thread, or <tt>null</tt> if the set is empty.
+         */
+        ThreadState first();
+
+        /**
+         * Remove and return the first thread, or <tt>null</tt> if the set is
+         * empty.
+         */
+        ThreadState pollFirst();
+    }
+
+    /**
+     * A <tt>WaitingSet</tt> kept in a <tt>TreeSet</tt>.
+     */
+    private static class TreeWaitingSet implements WaitingSet {
+        public void add(ThreadState threadState) {
+            set.add(threadState);
+        }
+
+        public void remove(ThreadState threadState) {
+            set.remove(threadState);
+        }
+
+        public boolean contains(ThreadState threadState) {
+            return set.contains(threadState);
+        }
+
+        public boolean isEmpty() {
+            return set.isEmpty();
+        }
+
+        public ThreadState first() {
+            return set.isEmpty() ? null : set.first();
+        }
+
+        public ThreadState pollFirst() {
+            return set.pollFirst();
+        }
+
+        private final TreeSet<ThreadState> set = new TreeSet<>(new Comparator<ThreadState>() {
             @Override
             public int compare(ThreadState o1, ThreadState o2) {
                 if (o1.id == o2.id) return 0;
@@ -212,6 +397,91 @@ public class PriorityScheduler extends Scheduler {
         });
     }
 
+    /**
+     * 按优先级分级的等待队列。
+     * A <tt>WaitingSet</tt> kept as one list per priority, linked through the
+     * <tt>ThreadState</tt>s, with a bitmap of the non-empty lists. The first
+     * thread is the head of the highest non-empty list, found with one bit
+     * scan.
+     *
+     * <p>
+     * Threads are FIFO within a priority, in the order they were added. So
+     * a thread whose priority changes while it waits goes to the tail of its
+     * new list, as if it had just started waiting, where a
+     * <tt>TreeWaitingSet</tt> would order it by the time it really started
+     * waiting. Threads that start waiting in the same tick are in the order
+     * they were added, not by <tt>id</tt>.
+     */
+    private static class BitmapWaitingSet implements WaitingSet {
+        public void add(ThreadState threadState) {
+            Lib.assertTrue(threadState.waitingIn == null);
+
+            int level = threadState.getEffectivePriority();
+
+            threadState.prevWaiter = tails[level];
+            threadState.nextWaiter = null;
+            if (tails[level] == null)
+                heads[level] = threadState;
+            else
+                tails[level].nextWaiter = threadState;
+            tails[level] = threadState;
+
+            threadState.waitingIn = this;
+            threadState.waitLevel = level;
+            occupied |= 1 << level;
+        }
+
+        public void remove(ThreadState threadState) {
+            if (threadState.waitingIn != this)
+                return;
+
+            int level = threadState.waitLevel;
+
+            if (threadState.prevWaiter == null)
+                heads[level] = threadState.nextWaiter;
+            else
+                threadState.prevWaiter.nextWaiter = threadState.nextWaiter;
+
+            if (threadState.nextWaiter == null)
+                tails[level] = threadState.prevWaiter;
+            else
+                threadState.nextWaiter.prevWaiter = threadState.prevWaiter;
+
+            if (heads[level] == null)
+                occupied &= ~(1 << level);
+
+            threadState.prevWaiter = threadState.nextWaiter = null;
+            threadState.waitingIn = null;
+        }
+
+        public boolean contains(ThreadState threadState) {
+            return threadState.waitingIn == this;
+        }
+
+        public boolean isEmpty() {
+            return occupied == 0;
+        }
+
+        public ThreadState first() {
+            if (occupied == 0)
+                return null;
+
+            return heads[31 - Integer.numberOfLeadingZeros(occupied)];
+        }
+
+        public ThreadState pollFirst() {
+            ThreadState first = first();
+            if (first != null)
+                remove(first);
+
+            return first;
+        }
+
+        private final ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+        private final ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+        private int occupied = 0;
+    }
+
     /**
      * The scheduling state of a thread. This should include the thread's
      * priority, its effective priority, any objects it owns, and the queue
@@ -265,11 +535,64 @@ public class PriorityScheduler extends Scheduler {
 
             this.priority = priority;
 
-            this.setEffectivePriority(priority);
+            updateEffectivePriority();
+        }
 
+        /**
+         * Called when this thread becomes the holder of a queue that
+         * transfers priority. The queue's waiting threads now donate to it.
+         */
+        private void hold(PriorityQueue queue) {
+            addDonation(queue.donation);
+            updateEffectivePriority();
+        }
+
+        /**
+         * Called when this thread stops holding a queue that transfers
+         * priority. Only the donation of that queue is withdrawn.
+         */
+        private void release(PriorityQueue queue) {
+            removeDonation(queue.donation);
+            updateEffectivePriority();
+        }
+
+        /**
+         * Called when the donation of a queue held by this thread changes.
+         */
+        private void changeDonation(int oldDonation, int newDonation) {
+            removeDonation(oldDonation);
+            addDonation(newDonation);
+            updateEffectivePriority();
+        }
+
+        private void addDonation(int donation) {
+            if (donation == noDonation)
+                return;
+
+            if (donations[donation]++ == 0)
+                donationMask |= 1 << donation;
+        }
+
+        private void removeDonation(int donation) {
+            if (donation == noDonation)
+                return;
+
+            Lib.assertTrue(donations[donation] > 0);
+            if (--donations[donation] == 0)
+                donationMask &= ~(1 << donation);
+        }
+
+        /**
+         * Recompute the effective priority as the maximum of this thread's
+         * own priority and every donation it receives.
+         */
+        private void updateEffectivePriority() {
+            int donated = 31 - Integer.numberOfLeadingZeros(donationMask);
+            setEffectivePriority(Math.max(priority, donated));
         }
 
         // 继承优先级，并动态调整优先队列
+        // 只有有效优先级改变时才沿着等待链继续传递
         private void setEffectivePriority(int effectivePriority) {
             if (this.effectivePriority == effectivePriority) {
                 return;
@@ -277,37 +600,22 @@ public class PriorityScheduler extends Scheduler {
 
 
             if (this.waitQueue != null) {
-                TreeSet<ThreadState> treeSet = this.waitQueue.waitingSet;
+                WaitingSet waitingSet = this.waitQueue.waitingSet;
 
-                Lib.assertTrue(treeSet.contains(this));
+                Lib.assertTrue(waitingSet.contains(this));
 
 
                 // 注意是先remove
-                treeSet.remove(this);
+                waitingSet.remove(this);
                 this.effectivePriority = effectivePriority;
-                treeSet.add(this);
+                waitingSet.add(this);
 
+                this.waitQueue.updateDonation();
             } else {
                 this.effectivePriority = effectivePriority;
             }
         }
 
-
-        /**
-         * 优先级复位
-         */
-        private void resetOriginalPriority() {
-            this.setEffectivePriority(this.priority);
-        }
-
-        /**
-         * 优先级继承
-         */
-        private void transferPriority(int priority) {
-            Lib.assertTrue(priority > this.getEffectivePriority());
-            setEffectivePriority(priority);
-        }
-
         /**
          * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
          * the associated thread) is invoked on the specified priority queue.
@@ -328,30 +636,8 @@ public class PriorityScheduler extends Scheduler {
 
             waitQueue.waitingSet.add(this);
 
-
-            ThreadState currentResourceHolder = waitQueue.resourceHolder;
-
-            // todo  Lib.assertTrue(waitQueue.resourceHolder != null); 此断言是没必要的
-
-            int higherEffectivePriority = this.getEffectivePriority();
-            // 优先级链式传递，直到某个线程不处于等待状态
-            if (currentResourceHolder != null
-                    && higherEffectivePriority > currentResourceHolder.getEffectivePriority()) {
-                PriorityQueue departure = waitQueue, destination = currentResourceHolder.waitQueue;
-
-                while (destination != null &&
-                        higherEffectivePriority > departure.resourceHolder.getPriority() &&
-                        departure.transferPriority) {
-                    departure.resourceHolder.transferPriority(higherEffectivePriority);
-                    departure = destination;
-                    if (destination.resourceHolder != null) {
-                        destination = destination.resourceHolder.waitQueue;
-                    } else {
-                        destination = null;
-                    }
-                }
-            }
-
+            // 优先级链式传递，直到某个线程的有效优先级不再改变
+            waitQueue.updateDonation();
         }
 
 
@@ -405,6 +691,22 @@ public class PriorityScheduler extends Scheduler {
          */
         protected long id;
 
+        /**
+         * The number of held queues donating each priority, and a bitmap of
+         * the priorities donated at least once. The highest set bit is the
+         * highest donation.
+         */
+        private final int[] donations = new int[priorityMaximum + 1];
+        private int donationMask = 0;
+
+        /**
+         * The <tt>BitmapWaitingSet</tt> this thread is in, if any, and its
+         * links and list there.
+         */
+        private BitmapWaitingSet waitingIn = null;
+        private ThreadState prevWaiter, nextWaiter;
+        private int waitLevel;
+
 
         @Override
         public String toString() {
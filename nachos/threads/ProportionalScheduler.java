@@ -0,0 +1,110 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor among threads in proportion to a
+ * number given to each thread: its tickets, or its weight. The number is
+ * the thread's priority, so it is set with <tt>setPriority()</tt>, and it is
+ * at least 1.
+ *
+ * <p>
+ * Subclasses store the number and decide what it means; this class maps the
+ * priority calls onto them.
+ */
+public abstract class ProportionalScheduler extends Scheduler {
+    /**
+     * Allocate a new proportional-share scheduler.
+     */
+    public ProportionalScheduler() {
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return (int) getShare(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return (int) Math.min(getEffectiveShare(thread), Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                priority <= priorityMaximum);
+
+        setShare(thread, priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = priority != priorityMaximum;
+        if (changed)
+            setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = priority != priorityMinimum;
+        if (changed)
+            setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    /**
+     * The default share of a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum share a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum share a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the share of the specified thread, as set by
+     * <tt>setPriority()</tt>.
+     *
+     * @param thread the thread whose share to return.
+     * @return the share of the thread.
+     */
+    protected abstract long getShare(KThread thread);
+
+    /**
+     * Return the share of the specified thread including any it has been
+     * given by other threads.
+     *
+     * @param thread the thread whose effective share to return.
+     * @return the effective share of the thread.
+     */
+    protected abstract long getEffectiveShare(KThread thread);
+
+    /**
+     * Set the share of the specified thread.
+     *
+     * @param thread the thread whose share to set.
+     * @param share  the new share, between <tt>priorityMinimum</tt> and
+     *               <tt>priorityMaximum</tt>.
+     */
+    protected abstract void setShare(KThread thread, long share);
+}
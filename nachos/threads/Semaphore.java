@@ -47,6 +47,40 @@ public class Semaphore {
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * but give up if that takes more than <i>timeout</i> ticks. The timeout
+     * is measured by <tt>ThreadedKernel.alarm</tt>, so it ends in the first
+     * timer interrupt after it.
+     *
+     * @param timeout the maximum number of clock ticks to wait.
+     * @return <tt>true</tt> if the semaphore was decremented, or
+     * <tt>false</tt> if the timeout ran out first.
+     */
+    public boolean P(long timeout) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean decremented = true;
+        if (value > 0) {
+            value--;
+        } else if (timeout <= 0) {
+            decremented = false;
+        } else {
+            Timeout handler = new Timeout(KThread.currentThread());
+            TimingWheel.Entry<Runnable> timer =
+                    ThreadedKernel.alarm.schedule(timeout, handler);
+
+            waitQueue.waitForAccess(KThread.currentThread());
+            KThread.sleep();
+
+            ThreadedKernel.alarm.cancel(timer);
+            decremented = !handler.expired;
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -65,6 +99,28 @@ public class Semaphore {
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * The timer of a <tt>P()</tt> with a timeout. If it expires while the
+     * thread is still waiting, it takes the thread out of the queue and makes
+     * it ready.
+     */
+    private class Timeout implements Runnable {
+        Timeout(KThread thread) {
+            this.thread = thread;
+        }
+
+        public void run() {
+            // V() 可能已经把线程取出了
+            if (waitQueue.remove(thread)) {
+                expired = true;
+                thread.ready();
+            }
+        }
+
+        private final KThread thread;
+        private boolean expired = false;
+    }
+
     private static class PingTest implements Runnable {
         PingTest(Semaphore ping, Semaphore pong) {
             this.ping = ping;
@@ -102,6 +158,46 @@ public class Semaphore {
         }
     }
 
+    /**
+     * Measure the cost of a context switch: two threads ping-pong through a
+     * pair of semaphores, and the host time per switch is printed. Each round
+     * is two context switches. Run it once for each <tt>TCB.handoff</tt> to
+     * compare them.
+     *
+     * @param rounds the number of round trips.
+     */
+    public static void switchBenchmark(final int rounds) {
+        final Semaphore ping = new Semaphore(0);
+        final Semaphore pong = new Semaphore(0);
+
+        KThread thread = new KThread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < rounds; i++) {
+                    ping.P();
+                    pong.V();
+                }
+            }
+        }).setName("pong");
+        thread.fork();
+
+        // warm up, and let the forked thread start
+        ping.V();
+        pong.P();
+
+        long start = System.nanoTime();
+        for (int i = 1; i < rounds; i++) {
+            ping.V();
+            pong.P();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long switches = 2L * (rounds - 1);
+        System.out.println("Context switches: " + switches + " in "
+                + elapsed / 1000000 + " ms, "
+                + switches * 1000000000L / Math.max(elapsed, 1) + "/s ("
+                + TCB.handoff() + " handoff)");
+    }
+
     private int value;
     // 这个 waitingSet 含义是存储那些因为信号量而等待的内核线程
     // 一个信号量实例对应一个 waitingSet
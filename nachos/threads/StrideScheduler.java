@@ -0,0 +1,353 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor in proportion to tickets, like a
+ * lottery scheduler, but deterministically.
+ *
+ * <p>
+ * Each thread has a number of tickets, and a stride inversely proportional
+ * to them. Each queue keeps its waiting threads in a heap ordered by their
+ * pass. The next thread to be dequeued is the one with the lowest pass, which
+ * then advances by its stride. Over any interval, a thread that is always
+ * waiting gets its share of turns to within one turn, where a lottery only
+ * gets it on average.
+ *
+ * <p>
+ * A thread's pass belongs to the thread, not to a queue, and being dequeued
+ * from any queue counts as a turn. A thread that starts waiting gets at least
+ * the pass of the last thread dequeued from that queue, so it cannot save up
+ * turns while it is blocked. Threads with equal passes are dequeued in the
+ * order they started waiting.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins as with a lottery
+ * scheduler: a thread's effective tickets are its own plus the effective
+ * tickets of every thread waiting in a queue it holds. When a waiting
+ * thread's tickets change, the rest of its current stride is scaled to
+ * the new stride.
+ */
+public class StrideScheduler extends ProportionalScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param transferPriority <tt>true</tt> if this queue should transfer
+     *                         tickets from waiting threads to the owning
+     *                         thread.
+     * @return a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new StrideQueue(transferPriority);
+    }
+
+    protected long getShare(KThread thread) {
+        return getThreadState(thread).tickets;
+    }
+
+    protected long getEffectiveShare(KThread thread) {
+        return getThreadState(thread).effectiveTickets;
+    }
+
+    protected void setShare(KThread thread, long share) {
+        getThreadState(thread).setTickets(share);
+    }
+
+    /**
+     * The stride of a thread with one ticket. A stride is this divided by
+     * the thread's effective tickets, but at least 1: donations can take the
+     * effective tickets past 2<sup>32</sup>, and a thread whose pass no
+     * longer advanced would be dequeued ahead of every other.
+     */
+    private static final long strideOne = 1L << 32;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary heap
+     * ordered by pass.
+     */
+    protected class StrideQueue extends ThreadQueue {
+        StrideQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+            Lib.assertTrue(state.waitQueue == null);
+
+            // 不能通过阻塞攒下 pass
+            state.pass = Math.max(state.pass, virtualTime);
+            state.sequence = numQueued++;
+            state.waitQueue = this;
+
+            if (size == heap.length) {
+                ThreadState[] newHeap = new ThreadState[Math.max(4, size * 2)];
+                System.arraycopy(heap, 0, newHeap, 0, size);
+                heap = newHeap;
+            }
+            heap[size] = state;
+            state.index = size++;
+            siftUp(state.index);
+
+            changeTickets(state.effectiveTickets);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            Lib.assertTrue(size == 0 && holder == null);
+
+            holder = getThreadState(thread);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            if (holder != null && transferPriority)
+                holder.changeEffectiveTickets(-total);
+            holder = null;
+
+            if (size == 0)
+                return null;
+
+            ThreadState state = heap[0];
+            remove(state);
+            total -= state.effectiveTickets;
+
+            virtualTime = state.pass;
+            state.pass += state.stride();
+
+            holder = state;
+            if (transferPriority)
+                holder.changeEffectiveTickets(total);
+
+            return state.thread;
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+            if (state.waitQueue != this)
+                return false;
+
+            remove(state);
+            changeTickets(-state.effectiveTickets);
+
+            return true;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < size; i++) {
+                System.out.print(" " + heap[i].thread + "(" + heap[i].pass
+                        + ")");
+            }
+            System.out.println();
+        }
+
+        /**
+         * Change the total tickets of the waiting threads by <i>delta</i>,
+         * and pass the change on to the holder.
+         */
+        private void changeTickets(long delta) {
+            total += delta;
+
+            if (transferPriority && holder != null)
+                holder.changeEffectiveTickets(delta);
+        }
+
+        /**
+         * Move a waiting thread whose pass changed to its place in the heap.
+         */
+        private void reposition(ThreadState state) {
+            siftUp(state.index);
+            siftDown(state.index);
+        }
+
+        private void remove(ThreadState state) {
+            int index = state.index;
+
+            ThreadState last = heap[--size];
+            heap[size] = null;
+            if (last != state) {
+                heap[index] = last;
+                last.index = index;
+                reposition(last);
+            }
+
+            state.waitQueue = null;
+        }
+
+        private void siftUp(int index) {
+            ThreadState state = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (!before(state, heap[parent]))
+                    break;
+
+                heap[index] = heap[parent];
+                heap[index].index = index;
+                index = parent;
+            }
+            heap[index] = state;
+            state.index = index;
+        }
+
+        private void siftDown(int index) {
+            ThreadState state = heap[index];
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && before(heap[child + 1], heap[child]))
+                    child++;
+                if (!before(heap[child], state))
+                    break;
+
+                heap[index] = heap[child];
+                heap[index].index = index;
+                index = child;
+            }
+            heap[index] = state;
+            state.index = index;
+        }
+
+        private boolean before(ThreadState a, ThreadState b) {
+            if (a.pass != b.pass)
+                return a.pass < b.pass;
+
+            return a.sequence < b.sequence;
+        }
+
+        /**
+         * <tt>true</tt> if this queue should transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        public boolean transferPriority;
+
+        private ThreadState holder = null;
+
+        /**
+         * The total effective tickets of the waiting threads.
+         */
+        private long total = 0;
+
+        /**
+         * The pass of the last thread dequeued, which no waiting thread's
+         * pass is below.
+         */
+        private long virtualTime = 0;
+
+        private ThreadState[] heap = new ThreadState[0];
+        private int size = 0;
+        private long numQueued = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets and effective tickets,
+     * its pass, and the queue it is waiting in, if any.
+     */
+    protected class ThreadState {
+        /**
+         * Allocate a new <tt>ThreadState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public ThreadState(KThread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Set the tickets of the associated thread.
+         *
+         * @param tickets the new number of tickets.
+         */
+        public void setTickets(long tickets) {
+            long delta = tickets - this.tickets;
+            this.tickets = tickets;
+
+            changeEffectiveTickets(delta);
+        }
+
+        /**
+         * Return the stride of the associated thread.
+         *
+         * @return the amount its pass advances each time it is dequeued.
+         */
+        public long stride() {
+            return Math.max(1, strideOne / effectiveTickets);
+        }
+
+        /**
+         * Change the effective tickets by <i>delta</i>. If this thread is
+         * waiting, scale the rest of its stride to the new stride and pass
+         * the change on to the queue's holder.
+         */
+        private void changeEffectiveTickets(long delta) {
+            if (delta == 0)
+                return;
+
+            long oldStride = stride();
+            effectiveTickets += delta;
+
+            if (waitQueue != null) {
+                long remaining = pass - waitQueue.virtualTime;
+                if (remaining > 0) {
+                    // remaining * stride() / oldStride, without overflow
+                    pass = waitQueue.virtualTime + (long) ((double) remaining
+                            * stride() / oldStride);
+                    waitQueue.reposition(this);
+                }
+
+                waitQueue.changeTickets(delta);
+            }
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The tickets of the associated thread.
+         */
+        protected long tickets = priorityDefault;
+        /**
+         * The tickets plus those donated by the waiters of held queues.
+         */
+        protected long effectiveTickets = priorityDefault;
+        /**
+         * The virtual time of this thread's next turn.
+         */
+        protected long pass = 0;
+
+        /**
+         * The queue this thread is waiting in, its index in the heap, and the
+         * order in which it started waiting.
+         */
+        private StrideQueue waitQueue = null;
+        private int index;
+        private long sequence;
+    }
+}
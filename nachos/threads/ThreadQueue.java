@@ -94,6 +94,18 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Remove a thread that is waiting for access without giving it access,
+     * for example because it stopped waiting after a timeout. The thread is
+     * not made ready; the caller must do that.
+     *
+     * @param thread the thread to remove.
+     * @return <tt>true</tt> if the thread was waiting in this queue, or
+     * <tt>false</tt> if it was not, for example because it has already been
+     * returned by <tt>nextThread()</tt>.
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
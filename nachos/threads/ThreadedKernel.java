@@ -47,6 +47,20 @@ public class ThreadedKernel extends Kernel {
      * tests here.
      */
     public void selfTest() {
+        // 上下文切换的性能测试
+        int rounds = Config.getInteger("ThreadedKernel.switchBenchmark", 0);
+        if (rounds > 0)
+            Semaphore.switchBenchmark(rounds);
+        // 优先级队列的性能测试
+        int threads = Config.getInteger("ThreadedKernel.schedulerBenchmark", 0);
+        if (threads > 0) {
+            PriorityScheduler.benchmark(threads, 1000000);
+            LotteryScheduler.benchmark(threads, 1000000);
+        }
+        // 访存的性能测试
+        int passes = Config.getInteger("ThreadedKernel.memoryBenchmark", 0);
+        if (passes > 0 && Machine.processor() != null)
+            Machine.processor().memoryBenchmark(passes);
 
         // 内核任务不可中断
 //        KThread.idleTest();
@@ -59,12 +73,15 @@ public class ThreadedKernel extends Kernel {
         // 用SynchList测试 Condition2
         SynchList.selfTest();
 
-        // 测试运行时优先级的更改
-        KThread.priorityScheduleTest();
-        // 测试优先级的继承（through lock）
-        KThread.priorityInheritanceTest();
-        // 测试优先级的继承（through join）
-        KThread.priorityInheritanceTest2();
+        // 比例份额调度器不接受优先级 0，跳过优先级的测试
+        if (!(scheduler instanceof ProportionalScheduler)) {
+            // 测试运行时优先级的更改
+            KThread.priorityScheduleTest();
+            // 测试优先级的继承（through lock）
+            KThread.priorityInheritanceTest();
+            // 测试优先级的继承（through join）
+            KThread.priorityInheritanceTest2();
+        }
         // 测试生产者-消费者程序
         Communicator.showDemo();
         // 测试坐船游戏
@@ -108,4 +125,7 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static FairScheduler dummy10 = null;
 }
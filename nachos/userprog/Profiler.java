@@ -0,0 +1,140 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 用户程序的采样分析器。
+ * Samples the running user program at every timer interrupt (about every
+ * 500 ticks), and prints a flat profile when Nachos terminates: for each
+ * process and function, the number of samples that landed in it.
+ *
+ * <p>
+ * A sample is the PC of the current process, attributed to a function
+ * through the symbol table of the process's executable. A process that is in
+ * a system call is charged to the function that made the call. Samples taken
+ * while no user process is running are charged to the kernel.
+ *
+ * <p>
+ * Enabled by <tt>Kernel.profile</tt>. A sample costs a binary search and a
+ * hash lookup, and does not take any simulated time. Reading each
+ * executable's symbol table does take simulated time, like any other read.
+ */
+public class Profiler {
+    /**
+     * Allocate a new profiler and start sampling.
+     */
+    public Profiler() {
+        ThreadedKernel.alarm.setTimerListener(new Runnable() {
+            public void run() {
+                sample();
+            }
+        });
+        Machine.addTerminationHandler(new Runnable() {
+            public void run() {
+                print();
+            }
+        });
+    }
+
+    /**
+     * Note that a process has loaded an executable.
+     *
+     * @param process the process.
+     * @param name    the name of the executable.
+     * @param coff    the executable.
+     */
+    public void addProcess(UserProcess process, String name, Coff coff) {
+        profiles.put(process.pid, new Profile(process.pid, name,
+                coff.readSymbolTable()));
+    }
+
+    /**
+     * Note that a process has forked a child, which runs the same executable.
+     *
+     * @param parent the parent process.
+     * @param child  the child process.
+     */
+    public void addChild(UserProcess parent, UserProcess child) {
+        Profile profile = profiles.get(parent.pid);
+        if (profile != null) {
+            profiles.put(child.pid, new Profile(child.pid, profile.name,
+                    profile.symbols));
+        }
+    }
+
+    private void sample() {
+        numSamples++;
+
+        UserProcess process = UserKernel.currentProcess();
+        Profile profile = process == null ? null : profiles.get(process.pid);
+        if (profile == null) {
+            kernelSamples++;
+            return;
+        }
+
+        // 符号表损坏时不按函数区分
+        int pc = Machine.processor().readRegister(Processor.regPC);
+        String function = profile.symbols == null ? null
+                : profile.symbols.lookup(pc);
+        if (function == null)
+            function = "?";
+
+        long[] count = profile.counts.get(function);
+        if (count == null)
+            profile.counts.put(function, count = new long[1]);
+        count[0]++;
+    }
+
+    private void print() {
+        if (numSamples == 0)
+            return;
+
+        List<String[]> rows = new ArrayList<String[]>();
+        for (Profile profile : profiles.values()) {
+            for (Map.Entry<String, long[]> e : profile.counts.entrySet()) {
+                rows.add(new String[]{Integer.toString(profile.pid),
+                        profile.name, e.getKey(),
+                        Long.toString(e.getValue()[0])});
+            }
+        }
+        rows.add(new String[]{"-", "-", "<kernel>",
+                Long.toString(kernelSamples)});
+
+        rows.sort(new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+                return Long.compare(Long.parseLong(b[3]), Long.parseLong(a[3]));
+            }
+        });
+
+        System.out.println("\nProfile: " + numSamples + " samples");
+        System.out.println("  samples      %  pid  program / function");
+        for (String[] row : rows) {
+            long n = Long.parseLong(row[3]);
+            System.out.println(String.format("%9d %6.2f %4s  %s / %s", n,
+                    100.0 * n / numSamples, row[0], row[1], row[2]));
+        }
+    }
+
+    private static class Profile {
+        Profile(int pid, String name, SymbolTable symbols) {
+            this.pid = pid;
+            this.name = name;
+            this.symbols = symbols;
+        }
+
+        final int pid;
+        final String name;
+        final SymbolTable symbols;
+        final Map<String, long[]> counts = new HashMap<String, long[]>();
+    }
+
+    private final Map<Integer, Profile> profiles = new HashMap<Integer, Profile>();
+    private long numSamples = 0, kernelSamples = 0;
+}
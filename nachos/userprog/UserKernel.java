@@ -33,6 +33,9 @@ public class UserKernel extends ThreadedKernel {
                 exceptionHandler();
             }
         });
+
+        if (Config.getBoolean("Kernel.profile", false))
+            profiler = new Profiler();
     }
 
     /**
@@ -132,6 +135,11 @@ public class UserKernel extends ThreadedKernel {
      */
     public static SynchConsole console;
 
+    /**
+     * The sampling profiler, or <tt>null</tt> if profiling is disabled.
+     */
+    public static Profiler profiler = null;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 
@@ -36,7 +36,7 @@ public class UserProcess {
      * @param writing 是否写
      * @return 物理地址（-1表示非法访问）
      */
-    protected int virtualToPhysicalAddress(int vaddr, boolean writing) {
+    protected long virtualToPhysicalAddress(int vaddr, boolean writing) {
         int vpn = Processor.pageFromAddress(vaddr);
         int offset = Processor.offsetFromAddress(vaddr);
 
@@ -64,7 +64,7 @@ public class UserProcess {
         VMKernel.usedFrameManager.access(entry, writing);
 
 
-        return (entry.ppn * pageSize) + offset;
+        return ((long) entry.ppn * pageSize) + offset;
     }
 
     /**
@@ -198,27 +198,35 @@ public class UserProcess {
                                  int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        PhysicalMemory memory = Machine.processor().getMemory();
 
         // for now, just assume that virtual addresses equal physical addresses
-//        if (vaddr < 0 || vaddr >= memory.length)
+//        if (vaddr < 0 || vaddr >= memory.size())
 //            return 0;
 //
 
-        int amount = Math.min(length, memory.length - vaddr);
+        int amount = (int) Math.min(length, memory.size() - vaddr);
 //        System.arraycopy(memory, vaddr, data, offset, amount);
 //
         if (amount < 0) {
-            System.err.println(memory.length + " , " + vaddr);
+            System.err.println(memory.size() + " , " + vaddr);
+        }
+
+        long paddr;
+
+        // 单个对齐字（指针、状态码）：一次地址转换、一次访存
+        if (amount == 4 && offset == 0 && vaddr % 4 == 0) {
+            paddr = virtualToPhysicalAddress(vaddr, false);
+            Lib.bytesFromInt(data, 0, Machine.processor().readPhysicalWord(paddr));
+            return amount;
         }
 
         // todo
         int base = vaddr;
-        int paddr;
         for (int i = offset; i < amount + offset; i++) {
             vaddr = base + i;
             paddr = virtualToPhysicalAddress(vaddr, false);
-            data[i] = memory[paddr];
+            data[i] = memory.readByte(paddr);
         }
         return amount;
     }
@@ -254,21 +262,31 @@ public class UserProcess {
                                   int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        PhysicalMemory memory = Machine.processor().getMemory();
 
         // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0 || vaddr >= memory.size())
             return 0;
 
-        int amount = Math.min(length, memory.length - vaddr);
+        int amount = (int) Math.min(length, memory.size() - vaddr);
 //        System.arraycopy(data, offset, memory, vaddr, amount);
 
+        long paddr;
+
+        // 单个对齐字：一次地址转换、一次访存
+        if (amount == 4 && offset == 0 && vaddr % 4 == 0) {
+            paddr = virtualToPhysicalAddress(vaddr, true);
+            Machine.processor().writePhysicalWord(paddr, Lib.bytesToInt(data, 0));
+            return amount;
+        }
+
         int base = vaddr;
-        int paddr;
         for (int i = offset; i < amount + offset; i++) {
             vaddr = base + i;
             paddr = virtualToPhysicalAddress(vaddr, true);
-            memory[paddr] = data[i];
+            memory.writeByte(paddr, data[i]);
+            if (i == offset || paddr % pageSize == 0)
+                Machine.processor().invalidDecodeCache((int) (paddr / pageSize));
         }
         return amount;
     }
@@ -313,6 +331,9 @@ public class UserProcess {
             return false;
         }
 
+        if (UserKernel.profiler != null)
+            UserKernel.profiler.addProcess(this, name, coff);
+
         // make sure the sections are contiguous and start at page 0
         numPages = 0;
         for (int s = 0; s < coff.getNumSections(); s++) {
@@ -534,6 +555,9 @@ public class UserProcess {
         userProcess.argv = this.argv;
         userProcess.pid = pidCounter;
 
+        if (UserKernel.profiler != null)
+            UserKernel.profiler.addChild(this, userProcess);
+
 
         UThread uThread = new UThread(userProcess, copyRegisters);
         userProcess.uThread = uThread;
@@ -0,0 +1,78 @@
+package nachos.vm;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * 地址空间标识（ASID）分配。
+ * Hands out the address-space IDs that tag TLB entries, so that a context
+ * switch only has to change the processor's current ASID instead of
+ * flushing the TLB.
+ *
+ * <p>
+ * ASIDs are assigned within a generation. A process asks for one the first
+ * time it runs in a generation, and prefers <tt>pid % numASIDs</tt>. When
+ * every ASID of the generation is taken a new generation starts: the whole
+ * TLB is flushed once, and every other process becomes stale and gets a new
+ * ASID the next time it runs. An ASID released by an exiting process has its
+ * entries flushed and can be handed out again in the same generation.
+ */
+public class ASIDManager {
+
+    private static final int numASIDs = Machine.processor().getNumASIDs();
+
+    // 当前代中已分配的 ASID
+    private static final boolean[] inUse = new boolean[numASIDs];
+
+    // 从 1 开始，这样从未分配过 ASID 的进程（代号为 0）总是过期的
+    private static int generation = 1;
+
+    /**
+     * @return 当前代号，进程记录的代号与之不同时说明它的 ASID 已过期
+     */
+    public static int generation() {
+        return generation;
+    }
+
+    /**
+     * 为进程分配一个 ASID，必要时开始新的一代并刷新整个 TLB
+     *
+     * @param pid 进程号
+     * @return 分配到的 ASID，在 <tt>generation()</tt> 这一代中有效
+     */
+    public static int allocate(int pid) {
+        int preferred = pid % numASIDs;
+        for (int i = 0; i < numASIDs; i++) {
+            int asid = (preferred + i) % numASIDs;
+            if (!inUse[asid]) {
+                inUse[asid] = true;
+                return asid;
+            }
+        }
+
+        // ASID 用完了：开始新的一代，旧一代的 TLB 项全部作废
+        generation++;
+        for (int i = 0; i < numASIDs; i++) {
+            inUse[i] = false;
+        }
+        Machine.processor().flushTLB();
+
+        inUse[preferred] = true;
+        return preferred;
+    }
+
+    /**
+     * 进程退出时归还 ASID，并刷掉它的 TLB 项，以便同一代中再次分配
+     *
+     * @param asid       ASID
+     * @param generation 分配到该 ASID 时的代号
+     */
+    public static void release(int asid, int generation) {
+        if (generation != ASIDManager.generation) {
+            return;
+        }
+        Lib.assertTrue(inUse[asid]);
+        inUse[asid] = false;
+        Machine.processor().flushTLB(asid);
+    }
+}
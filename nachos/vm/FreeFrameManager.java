@@ -61,10 +61,14 @@ public class FreeFrameManager {
     }
 
     public static void freePhysicalPages(List<Integer> physicalPageNumberList) {
+        for (int ppn : physicalPageNumberList) {
+            Machine.processor().invalidDecodeCache(ppn);
+        }
         freePhysicalPages.addAll(physicalPageNumberList);
     }
 
     public static void freePhysicalPages(int ppn) {
+        Machine.processor().invalidDecodeCache(ppn);
         freePhysicalPages.add(ppn);
     }
 
@@ -59,7 +59,9 @@ public class SwapManager {
         Lib.assertTrue(swap != null, "swap is null !");
         swap.read(fileOffset, buffer, 0, pageSize);
         swap.close();
-        System.arraycopy(buffer, 0, Machine.processor().getMemory(), ppn * pageSize, pageSize);
+        Machine.processor().getMemory().write((long) ppn * pageSize, buffer, 0,
+                pageSize);
+        Machine.processor().invalidDecodeCache(ppn);
         // 删除记录
         pageMapToOffset.remove(pidVpn);
     }
@@ -68,7 +70,8 @@ public class SwapManager {
 //        System.out.println("pid, vpn, ppn  :  " + pid + " " + vpn + " " + ppn);
         OpenFile swap = ThreadedKernel.fileSystem.open("swap", true);
         int fileOffset = (pageOffset++) * pageSize;
-        int len = swap.write(fileOffset, Machine.processor().getMemory(), ppn * pageSize, pageSize);
+        byte[] buffer = Processor.getOnePage(ppn);
+        int len = swap.write(fileOffset, buffer, 0, pageSize);
         Lib.assertTrue(len == pageSize, "write swap failure");
         swap.close();
         PidVpn pidVpn = new PidVpn(pid, vpn);
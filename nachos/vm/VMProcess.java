@@ -40,7 +40,7 @@ public class VMProcess extends UserProcess {
     }
 
     @Override
-    protected int virtualToPhysicalAddress(int vaddr, boolean writing) {
+    protected long virtualToPhysicalAddress(int vaddr, boolean writing) {
         handleTLBMiss(vaddr);
         return super.virtualToPhysicalAddress(vaddr, writing);
     }
@@ -52,18 +52,27 @@ public class VMProcess extends UserProcess {
 
         Lib.assertTrue(vaddr < MAX_VIRTUAL_ADDRESS, "address access error");
 
-        byte[] memory = Machine.processor().getMemory();
+        PhysicalMemory memory = Machine.processor().getMemory();
 
         // 仅仅是地址空间的上界发生了变化
         int amount = Math.min(length, MAX_VIRTUAL_ADDRESS - vaddr);
 
+        long paddr;
+
+        // 单个对齐字不会跨页，只需一次地址转换
+        if (amount == 4 && offset == 0 && vaddr % 4 == 0) {
+            paddr = virtualToPhysicalAddress(vaddr, false);
+            if (paddr == -1) return 0;
+            Lib.bytesFromInt(data, 0, Machine.processor().readPhysicalWord(paddr));
+            return amount;
+        }
+
         int base = vaddr;
-        int paddr;
         for (int i = offset; i < amount + offset; i++) {
             vaddr = base + i;
             paddr = virtualToPhysicalAddress(vaddr, false);
             if (paddr == -1) return 0;
-            data[i] = memory[paddr];
+            data[i] = memory.readByte(paddr);
         }
         return amount;
     }
@@ -76,7 +85,7 @@ public class VMProcess extends UserProcess {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
 
-        byte[] memory = Machine.processor().getMemory();
+        PhysicalMemory memory = Machine.processor().getMemory();
 
         if (vaddr < 0 || vaddr >= MAX_VIRTUAL_ADDRESS)
             return 0;
@@ -84,13 +93,24 @@ public class VMProcess extends UserProcess {
         // 仅仅是地址空间的上界发生了变化
         int amount = Math.min(length, MAX_VIRTUAL_ADDRESS - vaddr);
 
+        long paddr;
+
+        // 单个对齐字不会跨页，只需一次地址转换
+        if (amount == 4 && offset == 0 && vaddr % 4 == 0) {
+            paddr = virtualToPhysicalAddress(vaddr, true);
+            if (paddr == -1) return 0;
+            Machine.processor().writePhysicalWord(paddr, Lib.bytesToInt(data, 0));
+            return amount;
+        }
+
         int base = vaddr;
-        int paddr;
         for (int i = offset; i < amount + offset; i++) {
             vaddr = base + i;
             paddr = virtualToPhysicalAddress(vaddr, true);
             if (paddr == -1) return 0;
-            memory[paddr] = data[i];
+            memory.writeByte(paddr, data[i]);
+            if (i == offset || paddr % pageSize == 0)
+                Machine.processor().invalidDecodeCache((int) (paddr / pageSize));
         }
         return amount;
     }
@@ -107,9 +127,20 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-        // 刷新 TLB
-//        System.out.println("刷新 TLB");
-        Machine.processor().flushTLB();
+        // TLB 项带有 ASID，切换时不再刷新 TLB；只有 ASID 过期（从未分配或已换代）时才重新分配
+        if (asidGeneration != ASIDManager.generation()) {
+            asid = ASIDManager.allocate(pid);
+            asidGeneration = ASIDManager.generation();
+        }
+        Machine.processor().setASID(asid);
+    }
+
+    /**
+     * @return 当前处理器是否运行在本进程的地址空间中
+     */
+    private boolean isCurrentAddressSpace() {
+        return asidGeneration == ASIDManager.generation()
+                && Machine.processor().getASID() == asid;
     }
 
 
@@ -194,6 +225,8 @@ public class VMProcess extends UserProcess {
         entry.valid = false;
         // TLB失效
         Machine.processor().invalidTLBEntry(ppn);
+        // 预解码的指令失效
+        Machine.processor().invalidDecodeCache(ppn);
         // 帧释放
         FreeFrameManager.freePhysicalPages(ppn);
     }
@@ -243,7 +276,10 @@ public class VMProcess extends UserProcess {
             VMKernel.usedFrameManager.addOneFrame(new UsedFrameManager.EntryOfProcess(this.pid, newEntry)); // 将这一帧加入
         }
         // 更新 TLB
-        int number = Machine.processor().pickTLBEntry();
+        // 内核可能在别的进程的上下文中访问本进程的内存（例如 exec 时写入参数），
+        // 此时不能把本进程的页装入当前地址空间的 TLB
+        if (!isCurrentAddressSpace()) return;
+        int number = Machine.processor().pickTLBEntry(vpn);
 //        System.out.println("pid " + pid + "  new entry " + newEntry);
         Machine.processor().writeTLBEntry(number, newEntry);
     }
@@ -271,6 +307,10 @@ public class VMProcess extends UserProcess {
 //        System.out.println("VMProcess exit()");
         this.exitStatus = status;
 
+        // 归还 ASID
+        ASIDManager.release(asid, asidGeneration);
+        asidGeneration = 0;
+
         // todo 删除 UsedFrameManager 中的记录
         List<Integer> physicalPages = VMKernel.usedFrameManager.cleanUp(pid);
         // todo 释放帧表
@@ -295,6 +335,8 @@ public class VMProcess extends UserProcess {
                 childProcess.pageTable[i] = new TranslationEntry(this.pageTable[i]);
             }
         }
+        // 父进程的页都变成了 CoW，TLB 中缓存的旧页表项必须作废
+        Machine.processor().flushTLB(asid);
         // todo
         SwapManager.cloneFather(this.pid, childProcess.pid);
         return childProcess;
@@ -370,6 +412,12 @@ public class VMProcess extends UserProcess {
 
     protected HeapManager heapManager;
 
+    /**
+     * 本进程的 ASID 及其所属的代，代号为 0 表示尚未分配
+     */
+    private int asid = 0;
+    private int asidGeneration = 0;
+
     private static final int pageSize = Processor.pageSize;
     /**
      * 假定虚拟内存空间有 128 MB